@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.echonetlite.internal;
+
+import org.openhab.core.library.items.StringItem;
+import org.openhab.core.library.items.SwitchItem;
+import org.openhab.core.library.types.OnOffType;
+import org.openhab.model.item.binding.BindingConfigParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The lookups of {@link ECHONETLiteGenericBindingProvider} done for every command, update and
+ * change of the bindings, over a realistic mix of in- and out-binding items.
+ *
+ * @author Kazuhiro Matsuda
+ * @since 1.8.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BindingProviderBenchmark {
+
+	/** Number of lookups prepared, a power of two. */
+	private static final int LOOKUPS = 1024;
+
+	@Param({ "1000", "10000" })
+	public int items;
+
+	private ECHONETLiteGenericBindingProvider provider;
+
+	/** Names of sensor (in-binding) and switch (out-binding) items, in random order. */
+	private String[] sensorNames;
+	private String[] switchNames;
+
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() throws BindingConfigParseException {
+		provider = new ECHONETLiteGenericBindingProvider();
+		for (int i = 0; i < items; i++) {
+			int device = i % 100;
+			if (i % 2 == 0) {
+				provider.processBindingConfiguration("benchmark.items", new StringItem("Temp_" + i),
+					"<[temp_" + device + ":e0:10000]");
+			} else {
+				provider.processBindingConfiguration("benchmark.items", new SwitchItem("Light_" + i),
+					">[ON:light_" + device + ":80:30] >[OFF:light_" + device + ":80:31]");
+			}
+		}
+
+		Random random = new Random(42);
+		sensorNames = new String[LOOKUPS];
+		switchNames = new String[LOOKUPS];
+		for (int i = 0; i < LOOKUPS; i++) {
+			int item = random.nextInt(items / 2) * 2;
+			// new strings, as the names of the events are not the ones of the configuration
+			sensorNames[i] = new String("Temp_" + item);
+			switchNames[i] = new String("Light_" + (item + 1));
+		}
+	}
+
+	@Benchmark
+	public String getDeviceId() {
+		return provider.getDeviceId(sensorNames[next++ & (LOOKUPS - 1)]);
+	}
+
+	@Benchmark
+	public String getEpc() {
+		return provider.getEpc(sensorNames[next++ & (LOOKUPS - 1)]);
+	}
+
+	@Benchmark
+	public String getDeviceIdForCommand() {
+		return provider.getDeviceId(switchNames[next++ & (LOOKUPS - 1)], OnOffType.ON);
+	}
+
+	@Benchmark
+	public List<String> getInBindingItemNames() {
+		return provider.getInBindingItemNames();
+	}
+
+	/** What the binding reads on every refresh. */
+	@Benchmark
+	public ECHONETLitePollPlan getPollPlan() {
+		return provider.getPollPlan();
+	}
+}
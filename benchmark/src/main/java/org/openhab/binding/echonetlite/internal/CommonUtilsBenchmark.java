@@ -0,0 +1,71 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.echonetlite.internal;
+
+import org.openhab.binding.echonetlite.util.CommonUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The helpers of {@link CommonUtils} used when building requests.
+ *
+ * @author Kazuhiro Matsuda
+ * @since 1.8.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommonUtilsBenchmark {
+
+	@State(Scope.Thread)
+	public static class HexInput {
+		/** An EDATA_HEAD as configured in openhab.cfg, and a command EDT. */
+		@Param({ "0ef0010130016101", "30" })
+		public String hex;
+	}
+
+	@State(Scope.Thread)
+	public static class ValueInput {
+		/** An ON/OFF status, a temperature and a cumulative energy. */
+		@Param({ "48", "220", "77114" })
+		public long value;
+	}
+
+	@Benchmark
+	public byte[] hexStringToByteArray(HexInput input) {
+		return CommonUtils.hexStringToByteArray(input.hex);
+	}
+
+	@Benchmark
+	public byte[] long2byte(ValueInput input) {
+		return CommonUtils.long2byte(input.value);
+	}
+
+	@Benchmark
+	public byte[] getNextTid() {
+		return CommonUtils.getNextTid();
+	}
+
+	@Benchmark
+	public int nextTid() {
+		return CommonUtils.nextTid();
+	}
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.echonetlite.internal;
+
+import org.openhab.core.events.EventPublisher;
+import org.openhab.core.types.Command;
+import org.openhab.core.types.State;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An event bus which only counts the events the binding publishes, and measures how long an
+ * expected update took from the change on the device to its publication.
+ *
+ * @author Kazuhiro Matsuda
+ * @since 1.8.0
+ */
+public class CountingEventPublisher implements EventPublisher {
+
+	private final LongAdder updates = new LongAdder();
+	private final LongAdder commands = new LongAdder();
+
+	/** Time in ns an update of an item to a value is expected since, by "item=value". */
+	private final Map<String, Long> expected = new ConcurrentHashMap<>();
+
+	private final ECHONETLiteLatencyHistogram updateLatency = new ECHONETLiteLatencyHistogram();
+
+	/**
+	 * Starts the clock for an update of the item to the value, stopped when it is published.
+	 */
+	void expectUpdate(String itemName, String value) {
+		expected.put(itemName + "=" + value, System.nanoTime());
+	}
+
+	@Override
+	public void postUpdate(String itemName, State newState) {
+		updates.increment();
+		if (!expected.isEmpty()) {
+			Long since = expected.remove(itemName + "=" + newState);
+			if (since != null) {
+				updateLatency.record(System.nanoTime() - since);
+			}
+		}
+	}
+
+	@Override
+	public void sendCommand(String itemName, Command command) {
+		commands.increment();
+	}
+
+	@Override
+	public void postCommand(String itemName, Command command) {
+		commands.increment();
+	}
+
+	long getUpdates() {
+		return updates.sum();
+	}
+
+	long getCommands() {
+		return commands.sum();
+	}
+
+	/**
+	 * @return Number of expected updates which have not been published (yet).
+	 */
+	int getMissingUpdates() {
+		return expected.size();
+	}
+
+	ECHONETLiteLatencyHistogram getUpdateLatency() {
+		return updateLatency;
+	}
+
+	void reset() {
+		updates.reset();
+		commands.reset();
+		expected.clear();
+		updateLatency.reset();
+	}
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.echonetlite.internal;
+
+import org.openhab.binding.echonetlite.util.CommonUtils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frames as sent by common device objects, to run the benchmarks on realistic input.
+ *
+ * @author Kazuhiro Matsuda
+ * @since 1.8.0
+ */
+public enum FrameCorpus {
+
+	/** Get_Res of a temperature sensor (0x0011): measured temperature E0, 22.0 degrees. */
+	TEMPERATURE("1081" + "0001" + "001101" + "05FF01" + "72" + "01" + "E0" + "02" + "00DC"),
+
+	/** Get_Res of a home air conditioner (0x0130): status, mode, set and room temperature. */
+	AIR_CONDITIONER("1081" + "0002" + "013001" + "05FF01" + "72" + "04" + "80" + "01" + "30" + "B0"
+		+ "01" + "42" + "B3" + "01" + "1A" + "BB" + "01" + "18"),
+
+	/**
+	 * Get_Res of a low voltage smart meter (0x0288): instantaneous power E7, cumulative energy
+	 * E0 and the cumulative energy at a fixed time EA (date, time and value).
+	 */
+	SMART_METER("1081" + "0003" + "028801" + "05FF01" + "72" + "03" + "E7" + "04" + "000001F4" + "E0"
+		+ "04" + "00012D3A" + "EA" + "0B" + "07E40A12" + "0E1E00" + "00012D3A"),
+
+	/** Get_SNA of an air conditioner which cannot read one of the two properties. */
+	GET_SNA("1081" + "0004" + "013001" + "05FF01" + "52" + "02" + "80" + "01" + "30" + "BA" + "00"),
+
+	/** Get_Res with the Get property map (9F) of an air conditioner, as bitmap. */
+	PROPERTY_MAP("1081" + "0005" + "013001" + "05FF01" + "72" + "01" + "9F" + "11" + "20"
+		+ "0B0D0D0101030301030303030303010B");
+
+	private final byte[] frame;
+
+	private FrameCorpus(String hex) {
+		this.frame = CommonUtils.hexStringToByteArray(hex);
+	}
+
+	/**
+	 * @return A direct buffer holding the frame between position and limit, as the receiver
+	 *         thread of the connector has it.
+	 */
+	ByteBuffer toBuffer() {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(512);
+		buffer.put(frame).flip();
+		return buffer;
+	}
+}
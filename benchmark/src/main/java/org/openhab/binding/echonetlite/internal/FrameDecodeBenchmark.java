@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.echonetlite.internal;
+
+import org.openhab.binding.echonetlite.data.DeviceInfo;
+import org.openhab.binding.echonetlite.data.PropertyMap;
+import org.openhab.core.events.EventPublisher;
+import org.openhab.core.types.Command;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of replies as done on the receiver thread: walking the properties of the frame
+ * view, and the complete handling of a poll reply by
+ * {@link ECHONETLiteConnectingThread#responseReceived(ECHONETLiteFrame)}.
+ *
+ * @author Kazuhiro Matsuda
+ * @since 1.8.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameDecodeBenchmark {
+
+	@Param({ "TEMPERATURE", "AIR_CONDITIONER", "SMART_METER", "GET_SNA", "PROPERTY_MAP" })
+	public FrameCorpus corpus;
+
+	private ByteBuffer buffer;
+
+	private final ECHONETLiteFrame frame = new ECHONETLiteFrame();
+
+	private ECHONETLiteConnectingThread handler;
+
+	@Setup(Level.Trial)
+	public void setUp(final Blackhole blackhole) {
+		buffer = corpus.toBuffer();
+
+		// one item per EPC of the reply, none of them known yet
+		Map<String, List<String>> itemNamesByEpc = new HashMap<>();
+		frame.wrap(buffer);
+		while (frame.nextProperty()) {
+			itemNamesByEpc.put(frame.getEpcHex(),
+				Collections.singletonList("Item_" + frame.getEpcHex()));
+		}
+		DeviceInfo device = new DeviceInfo();
+		device.setEdataHead(new byte[] { 0x05, (byte) 0xFF, 0x01, 0x01, 0x30, 0x01, 0x62, 0x01 });
+		handler = new ECHONETLiteConnectingThread(null, itemNamesByEpc, device, null,
+			new HashMap<String, org.openhab.core.types.State>());
+		handler.setEventPublisher(new EventPublisher() {
+			@Override
+			public void sendCommand(String itemName, Command command) {
+				blackhole.consume(command);
+			}
+
+			@Override
+			public void postCommand(String itemName, Command command) {
+				blackhole.consume(command);
+			}
+
+			@Override
+			public void postUpdate(String itemName, org.openhab.core.types.State newState) {
+				blackhole.consume(newState);
+			}
+		});
+	}
+
+	@Benchmark
+	public void walkProperties(Blackhole blackhole) {
+		frame.wrap(buffer);
+		blackhole.consume(frame.getTid());
+		blackhole.consume(frame.getSeoj());
+		while (frame.nextProperty()) {
+			blackhole.consume(frame.getEpc());
+			blackhole.consume(frame.getEdtAsLong());
+		}
+	}
+
+	@Benchmark
+	public void decodeAsDecimal(Blackhole blackhole) {
+		frame.wrap(buffer);
+		while (frame.nextProperty()) {
+			blackhole.consume(frame.getEdtAsDecimal());
+		}
+	}
+
+	@Benchmark
+	public void responseReceived() {
+		handler.responseReceived(frame.wrap(buffer));
+	}
+
+	@Benchmark
+	public List<PropertyMap> parsePropertyMaps() {
+		List<PropertyMap> maps = new ArrayList<>(1);
+		frame.wrap(buffer);
+		while (frame.nextProperty()) {
+			if (frame.getEpc() == 0x9F) {
+				maps.add(PropertyMap.parse(frame.getEdt()));
+			}
+		}
+		return maps;
+	}
+}
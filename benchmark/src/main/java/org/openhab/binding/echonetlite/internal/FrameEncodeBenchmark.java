@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.echonetlite.internal;
+
+import org.openhab.binding.echonetlite.data.DeviceInfo;
+import org.openhab.binding.echonetlite.util.CommonUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of request frames into a pooled buffer, for the requests the binding sends: a
+ * poll of one or several properties and a SetC with a hex or a decimal value.
+ *
+ * @author Kazuhiro Matsuda
+ * @since 1.8.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameEncodeBenchmark {
+
+	private static final byte[] ONE_EPC = { (byte) 0xE0 };
+	private static final byte[] FOUR_EPCS = { (byte) 0x80, (byte) 0xB0, (byte) 0xB3, (byte) 0xBB };
+
+	private final ByteBuffer frame = ByteBuffer.allocateDirect(512);
+
+	private DeviceInfo getDevice;
+	private DeviceInfo setDevice;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		getDevice = new DeviceInfo();
+		getDevice.setEdataHead(CommonUtils.hexStringToByteArray("05FF010130016201"));
+		setDevice = new DeviceInfo();
+		setDevice.setEdataHead(CommonUtils.hexStringToByteArray("05FF010130016101"));
+	}
+
+	@Benchmark
+	public ByteBuffer encodeGet() {
+		frame.clear();
+		ECHONETLiteFrameEncoder.encodeGet(frame, getDevice, CommonUtils.nextTid(), ONE_EPC);
+		return frame;
+	}
+
+	@Benchmark
+	public ByteBuffer encodeGetFourProperties() {
+		frame.clear();
+		ECHONETLiteFrameEncoder.encodeGet(frame, getDevice, CommonUtils.nextTid(), FOUR_EPCS);
+		return frame;
+	}
+
+	/** A command with the EDT of the binding config, e.g. >[ON:hvac_a:80:30]. */
+	@Benchmark
+	public ByteBuffer encodeSetHex() {
+		frame.clear();
+		ECHONETLiteFrameEncoder.putHeader(frame, setDevice, CommonUtils.nextTid(), 0x61, 1);
+		ECHONETLiteFrameEncoder.putProperty(frame, (byte) 0x80, "30");
+		ECHONETLiteFrameEncoder.finish(frame);
+		return frame;
+	}
+
+	/** A command with a decimal value, e.g. a set temperature of 26 degrees. */
+	@Benchmark
+	public ByteBuffer encodeSetDecimal() {
+		frame.clear();
+		ECHONETLiteFrameEncoder.putHeader(frame, setDevice, CommonUtils.nextTid(), 0x61, 1);
+		ECHONETLiteFrameEncoder.putProperty(frame, (byte) 0xB3, 26L);
+		ECHONETLiteFrameEncoder.finish(frame);
+		return frame;
+	}
+}
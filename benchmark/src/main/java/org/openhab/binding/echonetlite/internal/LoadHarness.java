@@ -0,0 +1,393 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.echonetlite.internal;
+
+import org.openhab.binding.echonetlite.simulator.DeviceSimulator;
+import org.openhab.binding.echonetlite.simulator.VirtualDeviceObject;
+import org.openhab.binding.echonetlite.simulator.VirtualNode;
+import org.openhab.core.library.types.OnOffType;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMX;
+import javax.management.ObjectName;
+
+/**
+ * Drives {@link ECHONETLiteBinding} with simulated devices, a {@link StubBindingProvider} and
+ * a {@link CountingEventPublisher}, and writes what it measured as JSON.
+ * <p>
+ * After a warm-up, in which the addresses are resolved and the property maps read, the run
+ * polls all sensor items on their refresh interval, sends commands to the lights and changes
+ * sensor values on the devices, which announce them with INF. It measures:
+ * </p>
+ * <ul>
+ * <li>polls per second and the poll cycle time, as seen by the poll scheduler</li>
+ * <li>the latency from a command to the acknowledgement (Set_Res) of the device</li>
+ * <li>the latency from a change on a device to the publication of the update</li>
+ * <li>threads started, and the heap allocated by the threads of the binding and collected</li>
+ * </ul>
+ * <p>
+ * Arguments are <code>name=value</code> pairs, see {@link #DEFAULTS}. The simulated devices
+ * listen on consecutive loopback addresses from <code>first_address</code>.
+ * </p>
+ *
+ * @author Kazuhiro Matsuda
+ * @since 1.8.0
+ */
+public class LoadHarness {
+
+	/** The arguments and their defaults, a 2000 item building. */
+	static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+	static {
+		DEFAULTS.put("devices", "200");
+		DEFAULTS.put("items", "10");
+		DEFAULTS.put("refresh", "10000");
+		DEFAULTS.put("max_refresh", "0");
+		DEFAULTS.put("concurrency", String.valueOf(ECHONETLitePollScheduler.DEFAULT_CONCURRENCY));
+		DEFAULTS.put("commands_per_second", "20");
+		DEFAULTS.put("changes_per_second", "20");
+		DEFAULTS.put("rate", "0");
+		DEFAULTS.put("burst", "1");
+		DEFAULTS.put("latency", "5");
+		DEFAULTS.put("jitter", "5");
+		DEFAULTS.put("loss", "0");
+		DEFAULTS.put("warmup", "15");
+		DEFAULTS.put("duration", "60");
+		DEFAULTS.put("first_address", "127.0.1.1");
+		DEFAULTS.put("output", "load.json");
+	}
+
+	/** Prefix of the threads of the harness and the simulator, which are not the binding's. */
+	private static final String HARNESS_THREAD = "Load harness";
+	private static final String SIMULATOR_THREAD = "ECHONETLite simulator";
+
+	private static final int SENSOR_EOJ = 0x001101;
+	private static final int LIGHT_EOJ = 0x029001;
+
+	private final Map<String, String> config;
+	private final int devices;
+	private final int items;
+
+	private final DeviceSimulator simulator = new DeviceSimulator();
+	private final ECHONETLiteBinding binding = new ECHONETLiteBinding();
+	private final CountingEventPublisher eventPublisher = new CountingEventPublisher();
+
+	private final ECHONETLiteLatencyHistogram commandDispatch = new ECHONETLiteLatencyHistogram();
+	private final LongAdder commands = new LongAdder();
+	private final LongAdder changes = new LongAdder();
+	private final AtomicInteger nextValue = new AtomicInteger();
+
+	LoadHarness(Map<String, String> config) {
+		this.config = config;
+		this.devices = getInt("devices");
+		this.items = getInt("items");
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> config = new LinkedHashMap<>(DEFAULTS);
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			if (separator < 0 || !DEFAULTS.containsKey(arg.substring(0, separator))) {
+				System.err.println("Arguments: name=value, with the names and defaults " + DEFAULTS);
+				System.exit(1);
+			}
+			config.put(arg.substring(0, separator), arg.substring(separator + 1));
+		}
+		String result = new LoadHarness(config).run();
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(config.get("output")),
+			StandardCharsets.UTF_8)) {
+			writer.write(result);
+		}
+		System.out.println(result);
+		System.exit(0);
+	}
+
+	/**
+	 * @return The results as JSON.
+	 */
+	String run() throws Exception {
+		startSimulator();
+		startBinding();
+		ECHONETLiteStatisticsMXBean statistics = JMX.newMXBeanProxy(
+			ManagementFactory.getPlatformMBeanServer(),
+			new ObjectName(ECHONETLiteStatistics.OBJECT_NAME), ECHONETLiteStatisticsMXBean.class);
+		ScheduledExecutorService drivers = null;
+		try {
+			TimeUnit.SECONDS.sleep(getInt("warmup"));
+
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			long threadsStarted = threads.getTotalStartedThreadCount();
+			threads.resetPeakThreadCount();
+			long allocated = getAllocatedBytes(threads);
+			long gcCount = getGcCount();
+			long gcTime = getGcTime();
+			statistics.reset();
+			eventPublisher.reset();
+
+			long start = System.nanoTime();
+			drivers = startDrivers();
+			TimeUnit.SECONDS.sleep(getInt("duration"));
+			drivers.shutdownNow();
+			drivers.awaitTermination(10, TimeUnit.SECONDS);
+			double seconds = (System.nanoTime() - start) / 1e9;
+
+			ECHONETLiteStatisticsMXBean.LatencyStatistics pollCycleTime =
+				statistics.getPollCycleTime();
+			long polls = pollCycleTime.getCount();
+			long allocatedDuringRun = getAllocatedBytes(threads) - allocated;
+
+			StringBuilder json = new StringBuilder("{\n");
+			json.append("  \"config\": {");
+			String separator = "";
+			for (Map.Entry<String, String> entry : config.entrySet()) {
+				json.append(separator).append('"').append(entry.getKey()).append("\": \"")
+					.append(entry.getValue()).append('"');
+				separator = ", ";
+			}
+			json.append("},\n");
+			field(json, "seconds", seconds);
+			field(json, "items", devices * items);
+			field(json, "polls", polls);
+			field(json, "pollsPerSecond", polls / seconds);
+			latency(json, "pollCycleTimeMs", pollCycleTime.getCount(), pollCycleTime.getMean(),
+				pollCycleTime.getP50(), pollCycleTime.getP95(), pollCycleTime.getP99());
+			ECHONETLiteStatisticsMXBean.LatencyStatistics scheduleLag = statistics.getScheduleLag();
+			latency(json, "scheduleLagMs", scheduleLag.getCount(), scheduleLag.getMean(),
+				scheduleLag.getP50(), scheduleLag.getP95(), scheduleLag.getP99());
+			field(json, "missedDeadlines", statistics.getMissedDeadlines());
+			field(json, "commands", commands.sum());
+			field(json, "commandsPerSecond", commands.sum() / seconds);
+			latency(json, "commandDispatchMs", commandDispatch);
+			ECHONETLiteStatisticsMXBean.LatencyStatistics commandLatency =
+				statistics.getCommandLatency();
+			latency(json, "commandAckLatencyMs", commandLatency.getCount(),
+				commandLatency.getMean(), commandLatency.getP50(), commandLatency.getP95(),
+				commandLatency.getP99());
+			field(json, "changes", changes.sum());
+			field(json, "updatesPublished", eventPublisher.getUpdates());
+			field(json, "changesNotPublished", eventPublisher.getMissingUpdates());
+			latency(json, "updatePublishLatencyMs", eventPublisher.getUpdateLatency());
+			field(json, "timeouts", statistics.getTimeouts());
+			ECHONETLiteStatisticsMXBean.LatencyStatistics commandQueueWait =
+				statistics.getCommandQueueWait();
+			latency(json, "commandQueueWaitMs", commandQueueWait.getCount(),
+				commandQueueWait.getMean(), commandQueueWait.getP50(), commandQueueWait.getP95(),
+				commandQueueWait.getP99());
+			ECHONETLiteStatisticsMXBean.LatencyStatistics pollQueueWait =
+				statistics.getPollQueueWait();
+			latency(json, "pollQueueWaitMs", pollQueueWait.getCount(), pollQueueWait.getMean(),
+				pollQueueWait.getP50(), pollQueueWait.getP95(), pollQueueWait.getP99());
+			ECHONETLiteStatisticsMXBean.LatencyStatistics rateLimitWait =
+				statistics.getRateLimitWait();
+			latency(json, "rateLimitWaitMs", rateLimitWait.getCount(), rateLimitWait.getMean(),
+				rateLimitWait.getP50(), rateLimitWait.getP95(), rateLimitWait.getP99());
+			field(json, "bytesOut", statistics.getBytesOut());
+			field(json, "bytesIn", statistics.getBytesIn());
+			field(json, "threadsStarted", threads.getTotalStartedThreadCount() - threadsStarted);
+			field(json, "peakThreads", threads.getPeakThreadCount());
+			field(json, "allocatedBytes", allocatedDuringRun);
+			field(json, "allocatedBytesPerSecond", allocatedDuringRun / seconds);
+			field(json, "allocatedBytesPerPoll", polls > 0 ? (double) allocatedDuringRun / polls : 0);
+			field(json, "gcCount", getGcCount() - gcCount);
+			json.append("  \"gcTimeMs\": ").append(getGcTime() - gcTime).append("\n}\n");
+			return json.toString();
+		} finally {
+			if (drivers != null) {
+				drivers.shutdownNow();
+			}
+			binding.deactivate(0);
+			simulator.close();
+		}
+	}
+
+	private void startSimulator() throws IOException {
+		List<String> addresses = DeviceSimulator.addresses(config.get("first_address"), devices);
+		byte[] value = { 0x00, (byte) 0xDC };
+		for (String address : addresses) {
+			VirtualDeviceObject sensor = new VirtualDeviceObject(SENSOR_EOJ)
+				.property(0x80, new byte[] { 0x30 }, true, false, true)
+				.property(0x8A, new byte[] { 0x00, 0x00, 0x77 }, true, false, false);
+			for (int item = 0; item < items; item++) {
+				sensor.property(StubBindingProvider.FIRST_EPC + item, value, true, false, true);
+			}
+			simulator.addNode(address).addObject(sensor).addObject(VirtualDeviceObject.light(1));
+		}
+		simulator.setFaults(getInt("latency"), getInt("jitter"),
+			Double.parseDouble(config.get("loss")), 0);
+		simulator.start();
+	}
+
+	private void startBinding() throws Exception {
+		List<String> addresses = DeviceSimulator.addresses(config.get("first_address"), devices);
+		Hashtable<String, String> cfg = new Hashtable<>();
+		cfg.put("concurrency", config.get("concurrency"));
+		for (int device = 0; device < devices; device++) {
+			cfg.put("s" + device + ".host", addresses.get(device));
+			cfg.put("s" + device + ".edata_head", String.format("0ef001%06x6201", SENSOR_EOJ));
+			cfg.put("l" + device + ".host", addresses.get(device));
+			cfg.put("l" + device + ".edata_head", String.format("0ef001%06x6101", LIGHT_EOJ));
+			for (String instance : new String[] { "s" + device, "l" + device }) {
+				cfg.put(instance + ".rate", config.get("rate"));
+				cfg.put(instance + ".burst", config.get("burst"));
+			}
+		}
+		binding.updated(cfg);
+		binding.setEventPublisher(eventPublisher);
+		binding.activate();
+		binding.addBindingProvider(new StubBindingProvider(devices, items, getInt("refresh"),
+			getInt("max_refresh")));
+		// the provider never changes, so the bindings are read once
+		binding.execute();
+	}
+
+	/**
+	 * Starts sending commands and changing values at the configured rates.
+	 */
+	private ScheduledExecutorService startDrivers() {
+		ScheduledExecutorService drivers = Executors.newScheduledThreadPool(8, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, HARNESS_THREAD + "-" + count.incrementAndGet());
+			}
+		});
+		int commandsPerSecond = getInt("commands_per_second");
+		if (commandsPerSecond > 0) {
+			drivers.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					sendCommand();
+				}
+			}, 0, TimeUnit.SECONDS.toMicros(1) / commandsPerSecond, TimeUnit.MICROSECONDS);
+		}
+		int changesPerSecond = getInt("changes_per_second");
+		if (changesPerSecond > 0) {
+			drivers.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					changeValue();
+				}
+			}, 0, TimeUnit.SECONDS.toMicros(1) / changesPerSecond, TimeUnit.MICROSECONDS);
+		}
+		return drivers;
+	}
+
+	/**
+	 * Switches the light of a random device, which returns as soon as the command has been
+	 * handed to the binding; the binding measures until the device acknowledged.
+	 */
+	private void sendCommand() {
+		int device = ThreadLocalRandom.current().nextInt(devices);
+		OnOffType command = ThreadLocalRandom.current().nextBoolean() ? OnOffType.ON : OnOffType.OFF;
+		long start = System.nanoTime();
+		binding.receiveCommand(StubBindingProvider.lightItem(device), command);
+		commandDispatch.record(System.nanoTime() - start);
+		commands.increment();
+	}
+
+	/**
+	 * Changes a random sensor value on its device, which announces it with INF.
+	 */
+	private void changeValue() {
+		int device = ThreadLocalRandom.current().nextInt(devices);
+		int item = ThreadLocalRandom.current().nextInt(items);
+		int value = nextValue.incrementAndGet() & 0xFFFF;
+		VirtualNode node = simulator.getNodes().get(device);
+		eventPublisher.expectUpdate(StubBindingProvider.sensorItem(device, item),
+			String.valueOf(value));
+		node.update(SENSOR_EOJ, StubBindingProvider.FIRST_EPC + item, new byte[] {
+			(byte) (value >> 8), (byte) value });
+		changes.increment();
+	}
+
+	/**
+	 * @return The bytes allocated so far by the live threads of the binding, if the JVM
+	 *         measures it.
+	 */
+	private static long getAllocatedBytes(ThreadMXBean threads) {
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return 0;
+		}
+		long[] ids = threads.getAllThreadIds();
+		ThreadInfo[] infos = threads.getThreadInfo(ids);
+		long[] allocated = ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(ids);
+		long sum = 0;
+		for (int i = 0; i < ids.length; i++) {
+			if (infos[i] != null && allocated[i] > 0
+				&& !infos[i].getThreadName().startsWith(HARNESS_THREAD)
+				&& !infos[i].getThreadName().startsWith(SIMULATOR_THREAD)) {
+				sum += allocated[i];
+			}
+		}
+		return sum;
+	}
+
+	private static long getGcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static long getGcTime() {
+		long time = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			time += Math.max(0, gc.getCollectionTime());
+		}
+		return time;
+	}
+
+	private int getInt(String name) {
+		return Integer.parseInt(config.get(name));
+	}
+
+	private static void field(StringBuilder json, String name, long value) {
+		json.append("  \"").append(name).append("\": ").append(value).append(",\n");
+	}
+
+	private static void field(StringBuilder json, String name, double value) {
+		json.append("  \"").append(name).append("\": ")
+			.append(String.format(Locale.ROOT, "%.3f", value)).append(",\n");
+	}
+
+	private static void latency(StringBuilder json, String name,
+		ECHONETLiteLatencyHistogram histogram) {
+		latency(json, name, histogram.getCount(), histogram.getMean(),
+			histogram.getPercentile(50), histogram.getPercentile(95), histogram.getPercentile(99));
+	}
+
+	private static void latency(StringBuilder json, String name, long count, double mean,
+		double p50, double p95, double p99) {
+		json.append("  \"").append(name).append("\": ").append(String.format(Locale.ROOT,
+			"{\"count\": %d, \"mean\": %.3f, \"p50\": %.3f, \"p95\": %.3f, \"p99\": %.3f}", count,
+			mean, p50, p95, p99)).append(",\n");
+	}
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.echonetlite.internal;
+
+import org.openhab.binding.echonetlite.ECHONETLiteBindingProvider;
+import org.openhab.core.binding.BindingChangeListener;
+import org.openhab.core.items.Item;
+import org.openhab.core.library.items.StringItem;
+import org.openhab.core.library.items.SwitchItem;
+import org.openhab.core.library.types.OnOffType;
+import org.openhab.core.types.Command;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A binding provider with generated items instead of parsed item files: <code>items</code>
+ * sensor items on each of <code>devices</code> temperature sensors, bound to the EPCs from
+ * 0xE0 on, and a switch for the light of each device.
+ * <p>
+ * The sensors are configured as <code>s&lt;n&gt;</code>, the lights as
+ * <code>l&lt;n&gt;</code>; the names of the items are returned by {@link #sensorItem} and
+ * {@link #lightItem}.
+ * </p>
+ *
+ * @author Kazuhiro Matsuda
+ * @since 1.8.0
+ */
+public class StubBindingProvider implements ECHONETLiteBindingProvider {
+
+	/** EPC of the first sensor item of a device. */
+	static final int FIRST_EPC = 0xE0;
+
+	private static final class Binding {
+		final String deviceId;
+		final String epc;
+
+		Binding(String deviceId, String epc) {
+			this.deviceId = deviceId;
+			this.epc = epc;
+		}
+	}
+
+	private final Map<String, Binding> sensors = new HashMap<>();
+	private final Map<String, Binding> lights = new HashMap<>();
+	private final ECHONETLitePollPlan pollPlan;
+	private final Map<String, ECHONETLitePollPlan.Entry> pollEntries = new HashMap<>();
+	private final long refreshInterval;
+	private final long maxRefreshInterval;
+
+	/**
+	 * @param devices Number of devices
+	 * @param items Number of sensor items per device, up to 32
+	 * @param refreshInterval Refresh interval of the sensor items in ms
+	 * @param maxRefreshInterval Maximum refresh interval in ms, larger than
+	 *        <code>refreshInterval</code> to poll adaptively
+	 */
+	public StubBindingProvider(int devices, int items, long refreshInterval,
+		long maxRefreshInterval) {
+		if (items > 0x100 - FIRST_EPC) {
+			throw new IllegalArgumentException("at most " + (0x100 - FIRST_EPC)
+				+ " items per device");
+		}
+		this.refreshInterval = refreshInterval;
+		this.maxRefreshInterval = Math.max(refreshInterval, maxRefreshInterval);
+		List<ECHONETLitePollPlan.Entry> entries = new ArrayList<>(devices * items);
+		for (int device = 0; device < devices; device++) {
+			for (int item = 0; item < items; item++) {
+				String itemName = sensorItem(device, item);
+				Binding binding = new Binding("s" + device, Integer.toHexString(FIRST_EPC + item));
+				sensors.put(itemName, binding);
+				entries.add(new ECHONETLitePollPlan.Entry(itemName, binding.deviceId, binding.epc,
+					refreshInterval, maxRefreshInterval, null, null));
+			}
+			lights.put(lightItem(device), new Binding("l" + device, "80"));
+		}
+		this.pollPlan = new ECHONETLitePollPlan(entries);
+		for (ECHONETLitePollPlan.Entry entry : entries) {
+			pollEntries.put(entry.getItemName(), entry);
+		}
+	}
+
+	static String sensorItem(int device, int item) {
+		return "Sensor_" + device + "_" + item;
+	}
+
+	static String lightItem(int device) {
+		return "Light_" + device;
+	}
+
+	@Override
+	public Class<? extends Item> getItemType(String itemName) {
+		return sensors.containsKey(itemName) ? StringItem.class : SwitchItem.class;
+	}
+
+	@Override
+	public String getDeviceId(String itemName) {
+		Binding binding = sensors.get(itemName);
+		return binding != null ? binding.deviceId : null;
+	}
+
+	@Override
+	public String getDeviceId(String itemName, Command command) {
+		Binding binding = lights.get(itemName);
+		return binding != null ? binding.deviceId : null;
+	}
+
+	@Override
+	public String getEpc(String itemName) {
+		Binding binding = sensors.get(itemName);
+		return binding != null ? binding.epc : null;
+	}
+
+	@Override
+	public String getEpc(String itemName, Command command) {
+		Binding binding = lights.get(itemName);
+		return binding != null ? binding.epc : null;
+	}
+
+	@Override
+	public String getEdt(String itemName) {
+		return "";
+	}
+
+	@Override
+	public String getEdt(String itemName, Command command) {
+		return OnOffType.ON.equals(command) ? "30" : "31";
+	}
+
+	@Override
+	public long getRefreshInterval(String itemName) {
+		return sensors.containsKey(itemName) ? refreshInterval : 0;
+	}
+
+	@Override
+	public long getMaxRefreshInterval(String itemName) {
+		return sensors.containsKey(itemName) ? maxRefreshInterval : 0;
+	}
+
+	@Override
+	public List<String> getInBindingItemNames() {
+		return pollPlan.getItemNames();
+	}
+
+	@Override
+	public ECHONETLitePollPlan getPollPlan() {
+		return pollPlan;
+	}
+
+	@Override
+	public ECHONETLitePollPlan.Entry getPollEntry(String itemName) {
+		return pollEntries.get(itemName);
+	}
+
+	@Override
+	public String getValue(String itemName, Command command) {
+		return getEdt(itemName, command);
+	}
+
+	@Override
+	public String doTransformation(String itemName, String value) {
+		return value;
+	}
+
+	@Override
+	public String getOutputStateDeviceId(String itemName) {
+		return null;
+	}
+
+	@Override
+	public String getInputStateDeviceId(String itemName) {
+		return null;
+	}
+
+	@Override
+	public String getOutputStateEpc(String itemName) {
+		return null;
+	}
+
+	@Override
+	public String getInputStateEpc(String itemName) {
+		return null;
+	}
+
+	@Override
+	public void addBindingChangeListener(BindingChangeListener listener) {
+		// the items never change
+	}
+
+	@Override
+	public void removeBindingChangeListener(BindingChangeListener listener) {
+	}
+
+	@Override
+	public boolean providesBindingFor(String itemName) {
+		return sensors.containsKey(itemName) || lights.containsKey(itemName);
+	}
+
+	@Override
+	public boolean providesBinding() {
+		return true;
+	}
+
+	@Override
+	public Collection<String> getItemNames() {
+		List<String> itemNames = new ArrayList<>(pollPlan.getItemNames());
+		itemNames.addAll(lights.keySet());
+		return itemNames;
+	}
+}
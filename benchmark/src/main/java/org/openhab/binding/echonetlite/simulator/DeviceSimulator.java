@@ -0,0 +1,264 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.echonetlite.simulator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-process simulator of many ECHONET Lite nodes, for load and regression tests of the
+ * binding without real devices.
+ * <p>
+ * Every {@link VirtualNode} listens on the ECHONET Lite port of its own address. On Linux all
+ * of 127.0.0.0/8 is loopback, so thousands of nodes can be simulated without any setup; on
+ * other systems the addresses have to be configured as aliases of the loopback interface. All
+ * nodes share one receiver thread and one scheduler for delayed replies.
+ * </p>
+ *
+ * @author Kazuhiro Matsuda
+ * @since 1.8.0
+ */
+public class DeviceSimulator implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(DeviceSimulator.class);
+
+	public static final int ECHONET_PORT = 3610;
+
+	private final int port;
+
+	private final List<VirtualNode> nodes = new ArrayList<>();
+
+	private Selector selector = null;
+	private ScheduledExecutorService scheduler = null;
+	private Thread receiver = null;
+
+	public DeviceSimulator() {
+		this(ECHONET_PORT);
+	}
+
+	/**
+	 * @param port The port all nodes listen on
+	 */
+	public DeviceSimulator(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * Adds a node, which answers once the simulator is started.
+	 */
+	public synchronized VirtualNode addNode(String host) throws UnknownHostException {
+		if (selector != null) {
+			throw new IllegalStateException("nodes must be added before start()");
+		}
+		VirtualNode node = new VirtualNode(new InetSocketAddress(InetAddress.getByName(host), port));
+		nodes.add(node);
+		return node;
+	}
+
+	public synchronized List<VirtualNode> getNodes() {
+		return Collections.unmodifiableList(new ArrayList<>(nodes));
+	}
+
+	/**
+	 * Applies the same faults to all nodes.
+	 *
+	 * @see VirtualNode#setLatency(long, long)
+	 * @see VirtualNode#setLossRate(double)
+	 * @see VirtualNode#setSnaRate(double)
+	 */
+	public synchronized void setFaults(long latency, long jitter, double lossRate, double snaRate) {
+		for (VirtualNode node : nodes) {
+			node.setLatency(latency, jitter).setLossRate(lossRate).setSnaRate(snaRate);
+		}
+	}
+
+	/**
+	 * Binds all nodes and starts answering.
+	 */
+	public synchronized void start() throws IOException {
+		if (selector != null) {
+			return;
+		}
+		selector = Selector.open();
+		scheduler = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+			private int count = 0;
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ECHONETLite simulator sender-" + ++count);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			for (VirtualNode node : nodes) {
+				DatagramChannel channel = DatagramChannel.open();
+				channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+				channel.bind(node.getAddress());
+				channel.configureBlocking(false);
+				channel.register(selector, SelectionKey.OP_READ, node);
+				node.attach(channel, scheduler);
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+
+		final Selector selector = this.selector;
+		receiver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				receive(selector);
+			}
+		}, "ECHONETLite simulator");
+		receiver.setDaemon(true);
+		receiver.start();
+		logger.info("Simulating {} ECHONET Lite nodes on port {}", nodes.size(), port);
+	}
+
+	/**
+	 * Stops answering and releases the addresses of all nodes.
+	 */
+	@Override
+	public synchronized void close() {
+		if (selector == null) {
+			return;
+		}
+		for (SelectionKey key : selector.keys()) {
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+				logger.debug("Could not close channel: {}", e.toString());
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			logger.debug("Could not close selector: {}", e.toString());
+		}
+		for (VirtualNode node : nodes) {
+			node.detach();
+		}
+		scheduler.shutdownNow();
+		if (receiver != null) {
+			try {
+				receiver.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		selector = null;
+		scheduler = null;
+		receiver = null;
+	}
+
+	private void receive(Selector selector) {
+		ByteBuffer buffer = ByteBuffer.allocate(1500);
+		try {
+			while (selector.isOpen()) {
+				selector.select();
+				for (SelectionKey key : selector.selectedKeys()) {
+					DatagramChannel channel = (DatagramChannel) key.channel();
+					VirtualNode node = (VirtualNode) key.attachment();
+					InetSocketAddress source;
+					while ((source = (InetSocketAddress) channel.receive(buffer)) != null) {
+						buffer.flip();
+						node.handle(source, buffer);
+						buffer.clear();
+					}
+				}
+				selector.selectedKeys().clear();
+			}
+		} catch (ClosedSelectorException e) {
+			// closed by close()
+		} catch (IOException e) {
+			if (selector.isOpen()) {
+				logger.warn("Simulator stopped receiving: {}", e.toString());
+			}
+		}
+	}
+
+	/**
+	 * @return <code>count</code> consecutive IPv4 addresses starting at <code>first</code>
+	 */
+	public static List<String> addresses(String first, int count) throws UnknownHostException {
+		byte[] address = InetAddress.getByName(first).getAddress();
+		int value = ByteBuffer.wrap(address).getInt();
+		List<String> addresses = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			addresses.add(InetAddress.getByAddress(ByteBuffer.allocate(4).putInt(value + i).array())
+				.getHostAddress());
+		}
+		return addresses;
+	}
+
+	/**
+	 * Runs a simulator from the command line and prints the matching openhab.cfg lines.
+	 * <p>
+	 * Arguments: number of nodes (default 10), first address (default 127.0.1.1), latency in ms
+	 * (default 0), loss rate (default 0) and SNA rate (default 0). Every node has an air
+	 * conditioner, a light and a temperature sensor.
+	 * </p>
+	 */
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		String first = args.length > 1 ? args[1] : "127.0.1.1";
+		long latency = args.length > 2 ? Long.parseLong(args[2]) : 0;
+		double lossRate = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+		double snaRate = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+
+		final DeviceSimulator simulator = new DeviceSimulator();
+		for (String host : addresses(first, count)) {
+			simulator.addNode(host).addObject(VirtualDeviceObject.airConditioner(1))
+				.addObject(VirtualDeviceObject.light(1))
+				.addObject(VirtualDeviceObject.temperatureSensor(1));
+		}
+		simulator.setFaults(latency, latency / 2, lossRate, snaRate);
+		simulator.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				simulator.close();
+			}
+		});
+
+		int n = 0;
+		for (VirtualNode node : simulator.getNodes()) {
+			String host = node.getAddress().getAddress().getHostAddress();
+			for (VirtualDeviceObject object : node.getObjects()) {
+				String id = "sim" + n + "_" + object;
+				System.out.println("echonetlite:" + id + ".host=" + host);
+				System.out.println("echonetlite:" + id + ".EDATA_HEAD=0ef001" + object + "6101");
+				System.out.println("echonetlite:" + id + "_status.host=" + host);
+				System.out.println("echonetlite:" + id + "_status.EDATA_HEAD=0ef001" + object + "6201");
+			}
+			n++;
+		}
+		TimeUnit.DAYS.sleep(Long.MAX_VALUE);
+	}
+}
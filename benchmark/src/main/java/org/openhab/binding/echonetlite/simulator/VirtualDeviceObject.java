@@ -0,0 +1,211 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.echonetlite.simulator;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A device object of a {@link VirtualNode}: its EOJ, the values of its properties and which
+ * of them can be read (Get), written (Set) and are announced on change.
+ * <p>
+ * The property maps (0x9D, 0x9E, 0x9F) are derived from the properties, so they always match
+ * what the object answers.
+ * </p>
+ *
+ * @author Kazuhiro Matsuda
+ * @since 1.8.0
+ */
+public class VirtualDeviceObject {
+
+	static final int EPC_OPERATION_STATUS = 0x80;
+	static final int EPC_ANNOUNCE_PROPERTY_MAP = 0x9D;
+	static final int EPC_SET_PROPERTY_MAP = 0x9E;
+	static final int EPC_GET_PROPERTY_MAP = 0x9F;
+
+	private final int eoj;
+
+	private final Map<Integer, byte[]> values = new TreeMap<>();
+	private final Set<Integer> gettable = new TreeSet<>();
+	private final Set<Integer> settable = new TreeSet<>();
+	private final Set<Integer> announced = new TreeSet<>();
+
+	/**
+	 * @param eoj Class group, class and instance, e.g. 0x001101 for the first temperature sensor
+	 */
+	public VirtualDeviceObject(int eoj) {
+		this.eoj = eoj;
+		gettable.add(EPC_ANNOUNCE_PROPERTY_MAP);
+		gettable.add(EPC_SET_PROPERTY_MAP);
+		gettable.add(EPC_GET_PROPERTY_MAP);
+	}
+
+	/**
+	 * A temperature sensor (0x0011) measuring 22.0 degrees.
+	 */
+	public static VirtualDeviceObject temperatureSensor(int instance) {
+		return new VirtualDeviceObject(0x001100 | instance)
+			.property(EPC_OPERATION_STATUS, bytes(0x30), true, false, true)
+			.property(0x88, bytes(0x42), true, false, true)
+			.property(0x8A, bytes(0x00, 0x00, 0x77), true, false, false)
+			.property(0xE0, bytes(0x00, 0xDC), true, false, false);
+	}
+
+	/**
+	 * A home air conditioner (0x0130) which is on, cooling to 26 degrees at a room temperature
+	 * of 28 degrees.
+	 */
+	public static VirtualDeviceObject airConditioner(int instance) {
+		return new VirtualDeviceObject(0x013000 | instance)
+			.property(EPC_OPERATION_STATUS, bytes(0x30), true, true, true)
+			.property(0x88, bytes(0x42), true, false, true)
+			.property(0x8A, bytes(0x00, 0x00, 0x77), true, false, false)
+			.property(0xB0, bytes(0x42), true, true, true)
+			.property(0xB3, bytes(0x1A), true, true, false)
+			.property(0xBB, bytes(0x1C), true, false, false);
+	}
+
+	/**
+	 * A general lighting (0x0290) which is off.
+	 */
+	public static VirtualDeviceObject light(int instance) {
+		return new VirtualDeviceObject(0x029000 | instance)
+			.property(EPC_OPERATION_STATUS, bytes(0x31), true, true, true)
+			.property(0x88, bytes(0x42), true, false, true)
+			.property(0x8A, bytes(0x00, 0x00, 0x77), true, false, false)
+			.property(0xB0, bytes(0x64), true, true, false);
+	}
+
+	/**
+	 * Adds or replaces a property.
+	 *
+	 * @return This object, to add further properties
+	 */
+	public synchronized VirtualDeviceObject property(int epc, byte[] value, boolean get,
+		boolean set, boolean announce) {
+		values.put(epc, value.clone());
+		update(gettable, epc, get);
+		update(settable, epc, set);
+		update(announced, epc, announce);
+		return this;
+	}
+
+	public int getEoj() {
+		return eoj;
+	}
+
+	/**
+	 * @return The value of a property as read with Get, null if it cannot be read.
+	 */
+	public synchronized byte[] get(int epc) {
+		if (!gettable.contains(epc)) {
+			return null;
+		}
+		switch (epc) {
+			case EPC_ANNOUNCE_PROPERTY_MAP:
+				return propertyMap(announced);
+			case EPC_SET_PROPERTY_MAP:
+				return propertyMap(settable);
+			case EPC_GET_PROPERTY_MAP:
+				return propertyMap(gettable);
+			default:
+				byte[] value = values.get(epc);
+				return value != null ? value.clone() : null;
+		}
+	}
+
+	/**
+	 * @return The value of a property whether it can be read with Get or not, e.g. to announce
+	 *         it; null if the object has no such property.
+	 */
+	public synchronized byte[] getValue(int epc) {
+		byte[] value = values.get(epc);
+		return value != null ? value.clone() : null;
+	}
+
+	/**
+	 * Writes a property as with Set.
+	 *
+	 * @return false if the property cannot be written.
+	 */
+	public synchronized boolean set(int epc, byte[] value) {
+		if (!settable.contains(epc) || value.length == 0) {
+			return false;
+		}
+		values.put(epc, value.clone());
+		return true;
+	}
+
+	/**
+	 * Changes a property as the device itself would, e.g. a new measurement.
+	 */
+	public synchronized void update(int epc, byte[] value) {
+		values.put(epc, value.clone());
+	}
+
+	/**
+	 * @return Whether a change of the property is announced with INF.
+	 */
+	public synchronized boolean isAnnounced(int epc) {
+		return announced.contains(epc);
+	}
+
+	public synchronized Set<Integer> getProperties() {
+		return Collections.unmodifiableSet(new TreeSet<>(values.keySet()));
+	}
+
+	/**
+	 * @return The EDT of a property map: the number of properties followed by their EPCs (less
+	 *         than 16 properties) or a 16 byte bitmap, where bit <code>j</code> of byte
+	 *         <code>i</code> stands for EPC <code>0x80 + 0x10 * j + i</code>.
+	 */
+	static byte[] propertyMap(Set<Integer> epcs) {
+		if (epcs.size() < 16) {
+			byte[] map = new byte[1 + epcs.size()];
+			map[0] = (byte) epcs.size();
+			int i = 1;
+			for (int epc : epcs) {
+				map[i++] = (byte) epc;
+			}
+			return map;
+		}
+		byte[] map = new byte[17];
+		map[0] = (byte) epcs.size();
+		for (int epc : epcs) {
+			if (epc >= 0x80) {
+				map[1 + (epc & 0x0F)] |= 1 << ((epc - 0x80) >> 4);
+			}
+		}
+		return map;
+	}
+
+	static byte[] bytes(int... values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = (byte) values[i];
+		}
+		return bytes;
+	}
+
+	private static void update(Set<Integer> epcs, int epc, boolean contained) {
+		if (contained) {
+			epcs.add(epc);
+		} else {
+			epcs.remove(epc);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%06X", eoj);
+	}
+}
@@ -0,0 +1,487 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.echonetlite.simulator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A simulated ECHONET Lite node: one address with a node profile and any number of device
+ * objects, answering Get, SetC, SetI, SetGet and INF_REQ like a real node.
+ * <p>
+ * Faults can be injected per node: a delay before each reply, a share of requests which are
+ * dropped as if lost on the network, and a share of properties which are answered as not
+ * available (SNA). Changes of announced properties, by Set or by {@link #update}, are
+ * notified with INF.
+ * </p>
+ *
+ * @author Kazuhiro Matsuda
+ * @since 1.8.0
+ */
+public class VirtualNode {
+
+	private static final Logger logger = LoggerFactory.getLogger(VirtualNode.class);
+
+	static final int NODE_PROFILE_EOJ = 0x0EF001;
+
+	private static final int ESV_SETI = 0x60;
+	private static final int ESV_SETC = 0x61;
+	private static final int ESV_GET = 0x62;
+	private static final int ESV_INF_REQ = 0x63;
+	private static final int ESV_SETGET = 0x6E;
+	private static final int ESV_SET_RES = 0x71;
+	private static final int ESV_GET_RES = 0x72;
+	private static final int ESV_INF = 0x73;
+	private static final int ESV_SETGET_RES = 0x7E;
+	private static final int ESV_SETI_SNA = 0x50;
+	private static final int ESV_SETC_SNA = 0x51;
+	private static final int ESV_GET_SNA = 0x52;
+	private static final int ESV_INF_SNA = 0x53;
+	private static final int ESV_SETGET_SNA = 0x5E;
+
+	private static final int EPC_INSTANCE_COUNT = 0xD3;
+	private static final int EPC_INSTANCE_LIST_NOTIFICATION = 0xD5;
+	private static final int EPC_SELF_NODE_INSTANCE_LIST = 0xD6;
+	private static final int EPC_SELF_NODE_CLASS_LIST = 0xD7;
+
+	private static final int MAX_FRAME_SIZE = 1500;
+
+	private final InetSocketAddress address;
+
+	private final VirtualDeviceObject nodeProfile = new VirtualDeviceObject(NODE_PROFILE_EOJ)
+		.property(VirtualDeviceObject.EPC_OPERATION_STATUS, VirtualDeviceObject.bytes(0x30), true,
+			false, true)
+		.property(0x82, VirtualDeviceObject.bytes(0x01, 0x0C, 0x01, 0x00), true, false, false)
+		.property(0x8A, VirtualDeviceObject.bytes(0x00, 0x00, 0x77), true, false, false);
+
+	/** The objects by EOJ, the node profile first. */
+	private final Map<Integer, VirtualDeviceObject> objects = new LinkedHashMap<>();
+
+	private volatile DatagramChannel channel = null;
+	private volatile ScheduledExecutorService scheduler = null;
+
+	private volatile long latency = 0;
+	private volatile long jitter = 0;
+	private volatile double lossRate = 0;
+	private volatile double snaRate = 0;
+	private volatile InetSocketAddress notificationTarget = null;
+	private volatile InetSocketAddress lastController = null;
+
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder replies = new LongAdder();
+	private final LongAdder notifications = new LongAdder();
+
+	VirtualNode(InetSocketAddress address) {
+		this.address = address;
+		objects.put(NODE_PROFILE_EOJ, nodeProfile);
+		updateInstanceLists();
+	}
+
+	/**
+	 * Adds a device object, which is listed in the instance lists of the node profile.
+	 *
+	 * @return This node
+	 */
+	public VirtualNode addObject(VirtualDeviceObject object) {
+		synchronized (objects) {
+			objects.put(object.getEoj(), object);
+			updateInstanceLists();
+		}
+		return this;
+	}
+
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * @return The device objects, without the node profile.
+	 */
+	public List<VirtualDeviceObject> getObjects() {
+		synchronized (objects) {
+			List<VirtualDeviceObject> result = new ArrayList<>(objects.values());
+			result.remove(nodeProfile);
+			return result;
+		}
+	}
+
+	public VirtualDeviceObject getObject(int eoj) {
+		synchronized (objects) {
+			return objects.get(eoj);
+		}
+	}
+
+	/**
+	 * Delays every reply by <code>latency</code> ms plus a random share of <code>jitter</code> ms.
+	 */
+	public VirtualNode setLatency(long latency, long jitter) {
+		this.latency = latency;
+		this.jitter = jitter;
+		return this;
+	}
+
+	/**
+	 * @param lossRate Share of requests which are dropped without reply, between 0 and 1
+	 */
+	public VirtualNode setLossRate(double lossRate) {
+		this.lossRate = lossRate;
+		return this;
+	}
+
+	/**
+	 * @param snaRate Share of properties which are answered as not available, between 0 and 1
+	 */
+	public VirtualNode setSnaRate(double snaRate) {
+		this.snaRate = snaRate;
+		return this;
+	}
+
+	/**
+	 * @param target Where INF notifications are sent to; null to send them to the controller
+	 *        which sent the last request.
+	 */
+	public VirtualNode setNotificationTarget(InetSocketAddress target) {
+		this.notificationTarget = target;
+		return this;
+	}
+
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	public long getReplies() {
+		return replies.sum();
+	}
+
+	public long getNotifications() {
+		return notifications.sum();
+	}
+
+	/**
+	 * Changes a property as the device itself would, notifying the change if the property is
+	 * announced.
+	 */
+	public void update(int eoj, int epc, byte[] value) {
+		VirtualDeviceObject object = getObject(eoj);
+		if (object == null) {
+			throw new IllegalArgumentException("no object " + Integer.toHexString(eoj));
+		}
+		object.update(epc, value);
+		if (object.isAnnounced(epc)) {
+			notify(eoj, epc);
+		}
+	}
+
+	/**
+	 * Sends an INF with the current value of a property.
+	 */
+	public void notify(int eoj, int epc) {
+		VirtualDeviceObject object = getObject(eoj);
+		// announced properties need not be readable, e.g. the instance list notification
+		byte[] value = object != null ? object.getValue(epc) : null;
+		InetSocketAddress target = getNotificationTarget();
+		if (value == null || target == null) {
+			return;
+		}
+		ByteBuffer frame = header(ThreadLocalRandom.current().nextInt(0x10000), eoj, 0x05FF01,
+			ESV_INF, 1);
+		putProperty(frame, epc, value);
+		frame.flip();
+		notifications.increment();
+		send(frame, target, 0);
+	}
+
+	/**
+	 * Announces the device objects of the node with an INF of the instance list, as a node does
+	 * when it starts up.
+	 */
+	public void announceInstances() {
+		notify(NODE_PROFILE_EOJ, EPC_INSTANCE_LIST_NOTIFICATION);
+	}
+
+	void attach(DatagramChannel channel, ScheduledExecutorService scheduler) {
+		this.channel = channel;
+		this.scheduler = scheduler;
+	}
+
+	void detach() {
+		this.channel = null;
+	}
+
+	/**
+	 * Handles a request. Called on the receiver thread of the simulator.
+	 */
+	void handle(InetSocketAddress source, ByteBuffer request) {
+		if (request.remaining() < 12 || request.get(0) != 0x10 || request.get(1) != (byte) 0x81) {
+			return;
+		}
+		requests.increment();
+		lastController = source;
+		if (lossRate > 0 && ThreadLocalRandom.current().nextDouble() < lossRate) {
+			dropped.increment();
+			return;
+		}
+		int tid = request.getShort(2) & 0xFFFF;
+		int seoj = eoj(request, 4);
+		int deoj = eoj(request, 7);
+		int esv = request.get(10) & 0xFF;
+		request.position(11);
+
+		for (VirtualDeviceObject object : addressedObjects(deoj)) {
+			request.position(11);
+			ByteBuffer reply;
+			try {
+				reply = answer(object, tid, seoj, esv, request);
+			} catch (RuntimeException e) {
+				logger.debug("Ignoring malformed request from {}: {}", source, e.toString());
+				return;
+			}
+			if (reply != null) {
+				replies.increment();
+				send(reply, esv == ESV_INF_REQ && reply.get(10) == ESV_INF ? getNotificationTarget()
+					: source, delay());
+			}
+		}
+	}
+
+	/**
+	 * @return The reply to a request to one object, or null if none is sent.
+	 */
+	private ByteBuffer answer(VirtualDeviceObject object, int tid, int seoj, int esv,
+		ByteBuffer request) {
+		switch (esv) {
+			case ESV_GET:
+			case ESV_INF_REQ: {
+				ByteBuffer reply = header(tid, object.getEoj(), seoj, 0, 0);
+				int opc = request.get() & 0xFF;
+				boolean sna = readProperties(object, request, opc, reply);
+				finish(reply, esv == ESV_GET ? (sna ? ESV_GET_SNA : ESV_GET_RES) : (sna ? ESV_INF_SNA
+					: ESV_INF), opc);
+				return reply;
+			}
+			case ESV_SETC:
+			case ESV_SETI: {
+				ByteBuffer reply = header(tid, object.getEoj(), seoj, 0, 0);
+				int opc = request.get() & 0xFF;
+				boolean sna = writeProperties(object, request, opc, reply);
+				if (esv == ESV_SETI && !sna) {
+					return null;
+				}
+				finish(reply, esv == ESV_SETC ? (sna ? ESV_SETC_SNA : ESV_SET_RES) : ESV_SETI_SNA,
+					opc);
+				return reply;
+			}
+			case ESV_SETGET: {
+				ByteBuffer reply = header(tid, object.getEoj(), seoj, 0, 0);
+				int opcSet = request.get() & 0xFF;
+				reply.put(11, (byte) opcSet);
+				boolean sna = writeProperties(object, request, opcSet, reply);
+				int opcGet = request.get() & 0xFF;
+				reply.put((byte) opcGet);
+				sna |= readProperties(object, request, opcGet, reply);
+				reply.put(10, (byte) (sna ? ESV_SETGET_SNA : ESV_SETGET_RES));
+				reply.flip();
+				return reply;
+			}
+			default:
+				// not a request, e.g. a reply or a notification of another node
+				return null;
+		}
+	}
+
+	private boolean readProperties(VirtualDeviceObject object, ByteBuffer request, int opc,
+		ByteBuffer reply) {
+		boolean sna = false;
+		for (int i = 0; i < opc; i++) {
+			int epc = request.get() & 0xFF;
+			int pdc = request.get() & 0xFF;
+			request.position(request.position() + pdc);
+			byte[] value = object.get(epc);
+			if (value == null || (snaRate > 0 && ThreadLocalRandom.current().nextDouble() < snaRate)) {
+				sna = true;
+				reply.put((byte) epc).put((byte) 0);
+			} else {
+				putProperty(reply, epc, value);
+			}
+		}
+		return sna;
+	}
+
+	private boolean writeProperties(VirtualDeviceObject object, ByteBuffer request, int opc,
+		ByteBuffer reply) {
+		boolean sna = false;
+		List<Integer> changed = new ArrayList<>();
+		for (int i = 0; i < opc; i++) {
+			int epc = request.get() & 0xFF;
+			byte[] value = new byte[request.get() & 0xFF];
+			request.get(value);
+			byte[] oldValue = object.get(epc);
+			if ((snaRate > 0 && ThreadLocalRandom.current().nextDouble() < snaRate)
+				|| !object.set(epc, value)) {
+				// a property which was not written is echoed with its EDT
+				sna = true;
+				putProperty(reply, epc, value);
+			} else {
+				reply.put((byte) epc).put((byte) 0);
+				if (object.isAnnounced(epc) && !Arrays.equals(oldValue, value)) {
+					changed.add(epc);
+				}
+			}
+		}
+		for (int epc : changed) {
+			notify(object.getEoj(), epc);
+		}
+		return sna;
+	}
+
+	/**
+	 * @return The objects a request to the given EOJ is for; instance 0 addresses all instances
+	 *         of the class.
+	 */
+	private Collection<VirtualDeviceObject> addressedObjects(int deoj) {
+		List<VirtualDeviceObject> addressed = new ArrayList<>(1);
+		synchronized (objects) {
+			if ((deoj & 0xFF) == 0) {
+				for (VirtualDeviceObject object : objects.values()) {
+					if ((object.getEoj() & 0xFFFF00) == deoj) {
+						addressed.add(object);
+					}
+				}
+			} else {
+				VirtualDeviceObject object = objects.get(deoj);
+				if (object != null) {
+					addressed.add(object);
+				}
+			}
+		}
+		return addressed;
+	}
+
+	private void updateInstanceLists() {
+		List<VirtualDeviceObject> devices = new ArrayList<>(objects.values());
+		devices.remove(nodeProfile);
+		ByteBuffer instances = ByteBuffer.allocate(1 + 3 * devices.size());
+		instances.put((byte) Math.min(devices.size(), 84));
+		List<Integer> classes = new ArrayList<>();
+		for (VirtualDeviceObject device : devices) {
+			instances.put((byte) (device.getEoj() >> 16)).put((byte) (device.getEoj() >> 8))
+				.put((byte) device.getEoj());
+			if (!classes.contains(device.getEoj() >> 8)) {
+				classes.add(device.getEoj() >> 8);
+			}
+		}
+		byte[] classList = new byte[1 + 2 * classes.size()];
+		classList[0] = (byte) classes.size();
+		for (int i = 0; i < classes.size(); i++) {
+			classList[1 + 2 * i] = (byte) (classes.get(i) >> 8);
+			classList[2 + 2 * i] = classes.get(i).byteValue();
+		}
+		nodeProfile
+			.property(EPC_INSTANCE_COUNT, VirtualDeviceObject.bytes(0, devices.size() >> 8,
+				devices.size()), true, false, false)
+			.property(EPC_INSTANCE_LIST_NOTIFICATION, instances.array(), false, false, true)
+			.property(EPC_SELF_NODE_INSTANCE_LIST, instances.array(), true, false, false)
+			.property(EPC_SELF_NODE_CLASS_LIST, classList, true, false, false);
+	}
+
+	private InetSocketAddress getNotificationTarget() {
+		InetSocketAddress target = notificationTarget;
+		return target != null ? target : lastController;
+	}
+
+	private long delay() {
+		long delay = latency;
+		if (jitter > 0) {
+			delay += ThreadLocalRandom.current().nextLong(jitter + 1);
+		}
+		return delay;
+	}
+
+	private void send(final ByteBuffer frame, final InetSocketAddress target, long delay) {
+		final DatagramChannel channel = this.channel;
+		if (channel == null || target == null) {
+			return;
+		}
+		if (delay <= 0) {
+			sendNow(channel, frame, target);
+			return;
+		}
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				sendNow(channel, frame, target);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void sendNow(DatagramChannel channel, ByteBuffer frame, InetSocketAddress target) {
+		try {
+			channel.send(frame, target);
+		} catch (IOException e) {
+			logger.debug("Could not send from {} to {}: {}", address, target, e.toString());
+		}
+	}
+
+	private static ByteBuffer header(int tid, int seoj, int deoj, int esv, int opc) {
+		ByteBuffer frame = ByteBuffer.allocate(MAX_FRAME_SIZE);
+		frame.put((byte) 0x10).put((byte) 0x81).putShort((short) tid);
+		putEoj(frame, seoj);
+		putEoj(frame, deoj);
+		frame.put((byte) esv);
+		if (esv != 0) {
+			frame.put((byte) opc);
+		} else {
+			// ESV and OPC are filled in by finish()
+			frame.put((byte) 0);
+		}
+		return frame;
+	}
+
+	private static void finish(ByteBuffer frame, int esv, int opc) {
+		frame.put(10, (byte) esv).put(11, (byte) opc).flip();
+	}
+
+	private static void putProperty(ByteBuffer frame, int epc, byte[] value) {
+		frame.put((byte) epc).put((byte) value.length).put(value);
+	}
+
+	private static void putEoj(ByteBuffer frame, int eoj) {
+		frame.put((byte) (eoj >> 16)).put((byte) (eoj >> 8)).put((byte) eoj);
+	}
+
+	private static int eoj(ByteBuffer frame, int offset) {
+		return (frame.get(offset) & 0xFF) << 16 | (frame.get(offset + 1) & 0xFF) << 8
+			| (frame.get(offset + 2) & 0xFF);
+	}
+
+	@Override
+	public String toString() {
+		return address.getAddress().getHostAddress() + " " + getObjects();
+	}
+}
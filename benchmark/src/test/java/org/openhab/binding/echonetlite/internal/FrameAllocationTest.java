@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.echonetlite.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openhab.binding.echonetlite.data.DeviceInfo;
+import org.openhab.binding.echonetlite.util.CommonUtils;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * Checks that encoding a request frame and walking the properties of a reply do not
+ * allocate, by the bytes the thread allocated over many frames as counted by
+ * {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)}.
+ * <p>
+ * The loops are run a while first, so that they are compiled before they are measured;
+ * whatever is left is allowed as a small, fixed amount, not per frame.
+ * </p>
+ *
+ * @author Kazuhiro Matsuda
+ * @since 1.8.0
+ */
+public class FrameAllocationTest {
+
+	/** Frames encoded or decoded before measuring, for the JIT to compile the loops. */
+	private static final int WARMUP_FRAMES = 200000;
+
+	private static final int MEASURED_FRAMES = 100000;
+
+	/** Bytes the thread may allocate during all measured frames, far less than one per frame. */
+	private static final long ALLOWED_BYTES = 16 * 1024;
+
+	private static final byte[] FOUR_EPCS = { (byte) 0x80, (byte) 0xB0, (byte) 0xB3, (byte) 0xBB };
+
+	private static final byte[] SET_TEMPERATURE = { 0x1A };
+
+	private com.sun.management.ThreadMXBean threads;
+
+	private final ByteBuffer frame = ByteBuffer.allocateDirect(512);
+
+	private final ECHONETLiteFrame view = new ECHONETLiteFrame();
+
+	private DeviceInfo getDevice;
+
+	private DeviceInfo setDevice;
+
+	@Before
+	public void setUp() {
+		assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		getDevice = new DeviceInfo();
+		getDevice.setEdataHead(CommonUtils.hexStringToByteArray("05FF010130016201"));
+		setDevice = new DeviceInfo();
+		setDevice.setEdataHead(CommonUtils.hexStringToByteArray("05FF010130016101"));
+	}
+
+	@Test
+	public void encodingDoesNotAllocate() {
+		encode(WARMUP_FRAMES);
+		long allocated = allocatedBytes();
+		long checksum = encode(MEASURED_FRAMES);
+		allocated = allocatedBytes() - allocated;
+
+		assertTrue(checksum != 0);
+		assertFlat(allocated, "encoding");
+	}
+
+	@Test
+	public void decodingDoesNotAllocate() {
+		ByteBuffer[] replies = new ByteBuffer[FrameCorpus.values().length];
+		for (FrameCorpus corpus : FrameCorpus.values()) {
+			replies[corpus.ordinal()] = corpus.toBuffer();
+		}
+		decode(replies, WARMUP_FRAMES);
+		long allocated = allocatedBytes();
+		long checksum = decode(replies, MEASURED_FRAMES);
+		allocated = allocatedBytes() - allocated;
+
+		assertTrue(checksum != 0);
+		assertFlat(allocated, "decoding");
+	}
+
+	@Test
+	public void encodedFrameIsDecodedAgain() {
+		ECHONETLiteFrameEncoder.encodeGet(frame, getDevice, 0x1234, FOUR_EPCS);
+		view.wrap(frame);
+
+		assertTrue(view.isValid());
+		assertEquals(0x1234, view.getTid());
+		assertEquals(0x62, view.getEsv());
+		assertEquals(FOUR_EPCS.length, view.getOpc());
+		for (byte epc : FOUR_EPCS) {
+			assertTrue(view.nextProperty());
+			assertEquals(epc & 0xFF, view.getEpc());
+			assertEquals(0, view.getPdc());
+		}
+	}
+
+	/**
+	 * Encodes a poll of four properties and a SetC of one, as the binding does.
+	 *
+	 * @return Something depending on the frames, so that the work is not optimized away.
+	 */
+	private long encode(int frames) {
+		long checksum = 0;
+		for (int i = 0; i < frames; i++) {
+			ECHONETLiteFrameEncoder.encodeGet(frame, getDevice, CommonUtils.nextTid(), FOUR_EPCS);
+			checksum += frame.remaining();
+			ECHONETLiteFrameEncoder.putHeader(frame, setDevice, CommonUtils.nextTid(), 0x61, 2);
+			ECHONETLiteFrameEncoder.putProperty(frame, (byte) 0x80, "30");
+			ECHONETLiteFrameEncoder.putProperty(frame, (byte) 0xB3, SET_TEMPERATURE);
+			ECHONETLiteFrameEncoder.finish(frame);
+			checksum += frame.get(frame.limit() - 1);
+		}
+		return checksum;
+	}
+
+	/**
+	 * Walks the header and the properties of the replies, as the receiver thread does.
+	 *
+	 * @return Something depending on the frames, so that the work is not optimized away.
+	 */
+	private long decode(ByteBuffer[] replies, int frames) {
+		long checksum = 0;
+		for (int i = 0; i < frames; i++) {
+			view.wrap(replies[i % replies.length]);
+			if (!view.isValid()) {
+				continue;
+			}
+			checksum += view.getTid() + view.getSeoj() + view.getEsv();
+			while (view.nextProperty()) {
+				checksum += view.getEpc() + view.getPdc() + view.getEdtAsLong();
+				if (view.edtEquals(SET_TEMPERATURE)) {
+					checksum++;
+				}
+			}
+		}
+		return checksum;
+	}
+
+	private long allocatedBytes() {
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static void assertFlat(long allocated, String what) {
+		assertTrue(what + " " + MEASURED_FRAMES + " frames allocated " + allocated + " bytes",
+			allocated <= ALLOWED_BYTES);
+	}
+}
@@ -15,6 +15,7 @@ import org.openhab.core.items.Item;
 import org.openhab.core.transform.TransformationException;
 import org.openhab.core.types.Command;
 import org.openhab.binding.echonetlite.internal.ECHONETLiteBindingConfig;
+import org.openhab.binding.echonetlite.internal.ECHONETLitePollPlan;
 
 /**
  * @author aklevy, kazuhiro Matsuda
@@ -49,10 +50,43 @@ public interface ECHONETLiteBindingProvider extends BindingProvider {
 
 	String getEdt(String itemName, Command command);
 
+	/**
+	 * Returns the refresh interval of an in-binding item, the minimum one if it is adaptive.
+	 *
+	 * @param itemName The item for which to find the refresh interval.
+	 * @return the refresh interval in milliseconds, 0 if the item is not polled.
+	 */
 	long getRefreshInterval(String itemName);
 
+	/**
+	 * Returns the maximum refresh interval of an in-binding item, which the interval grows to
+	 * while the value of the item does not change.
+	 *
+	 * @param itemName The item for which to find the refresh interval.
+	 * @return the maximum refresh interval in milliseconds, the same as
+	 *         {@link #getRefreshInterval(String)} if it is fixed.
+	 */
+	long getMaxRefreshInterval(String itemName);
+
 	List<String> getInBindingItemNames();
 
+	/**
+	 * Returns the in-binding items resolved to their devices, EPCs and refresh intervals.
+	 *
+	 * @return the current plan, which is not changed afterwards; a new one is returned once
+	 *         the bindings changed.
+	 */
+	ECHONETLitePollPlan getPollPlan();
+
+	/**
+	 * Returns the entry of the poll plan of a single item, to apply the change of one binding
+	 * without the whole plan.
+	 *
+	 * @param itemName The item for which to find the entry.
+	 * @return the entry, null if the item has no valid in-binding.
+	 */
+	ECHONETLitePollPlan.Entry getPollEntry(String itemName);
+
 	String getValue(String itemName, Command command);
 
 	String doTransformation(String itemNamem, String value) throws TransformationException;
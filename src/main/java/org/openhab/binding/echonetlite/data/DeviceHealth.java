@@ -0,0 +1,132 @@
+package org.openhab.binding.echonetlite.data;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Tracks whether a device answers, so that requests to a device which is unplugged do not
+ * wait for their timeout over and over again.
+ * </p>
+ * <p>
+ * The circuit is closed while the device answers. After <code>failureThreshold</code>
+ * timeouts in a row it opens and no requests are sent until the backoff has passed; then
+ * a single request is let through (half-open). If it is answered the circuit closes again,
+ * otherwise it opens with twice the backoff, up to <code>maxBackoff</code>.
+ * </p>
+ *
+ * @author Kazuhiro Matsuda
+ * @version 1.0
+ */
+public class DeviceHealth {
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+	public static final long DEFAULT_BACKOFF = TimeUnit.SECONDS.toMillis(5);
+	public static final long DEFAULT_MAX_BACKOFF = TimeUnit.MINUTES.toMillis(5);
+
+	private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+	private long initialBackoff = DEFAULT_BACKOFF;
+	private long maxBackoff = DEFAULT_MAX_BACKOFF;
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures = 0;
+	/** Time in ms the circuit stays open, doubled by every failed probe. */
+	private long backoff = 0;
+	/** When to let the next probe through, in {@link System#nanoTime()}. */
+	private long retryAt = 0;
+	private long openedCount = 0;
+
+	/**
+	 * @param failureThreshold Number of timeouts in a row which open the circuit
+	 * @param initialBackoff Time in ms before the first probe
+	 * @param maxBackoff Longest time in ms between two probes
+	 */
+	public synchronized void setPolicy(int failureThreshold, long initialBackoff, long maxBackoff) {
+		if (failureThreshold < 1) {
+			throw new IllegalArgumentException("failure threshold must be at least 1");
+		}
+		this.failureThreshold = failureThreshold;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = Math.max(initialBackoff, maxBackoff);
+	}
+
+	/**
+	 * Checks whether a request may be sent now. When the backoff of an open circuit has passed,
+	 * the circuit becomes half-open and exactly one caller is allowed to probe the device; if
+	 * that probe is never sent, the next one is allowed after another backoff.
+	 */
+	public synchronized boolean allowRequest(long now) {
+		if (state == State.CLOSED) {
+			return true;
+		}
+		if (now - retryAt >= 0) {
+			state = State.HALF_OPEN;
+			retryAt = now + TimeUnit.MILLISECONDS.toNanos(backoff);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Records an answer of the device.
+	 *
+	 * @return true if the circuit was not closed before, i.e. the device is back.
+	 */
+	public synchronized boolean recordSuccess() {
+		boolean recovered = state != State.CLOSED;
+		state = State.CLOSED;
+		consecutiveFailures = 0;
+		backoff = 0;
+		return recovered;
+	}
+
+	/**
+	 * Records a request the device did not answer.
+	 *
+	 * @return true if the circuit opened, either because the threshold was reached or because
+	 *         a probe failed.
+	 */
+	public synchronized boolean recordFailure(long now) {
+		consecutiveFailures++;
+		if (state == State.HALF_OPEN) {
+			backoff = Math.min(backoff * 2, maxBackoff);
+		} else if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+			backoff = initialBackoff;
+			openedCount++;
+		} else {
+			return false;
+		}
+		state = State.OPEN;
+		retryAt = now + TimeUnit.MILLISECONDS.toNanos(backoff);
+		return true;
+	}
+
+	public synchronized State getState() {
+		return this.state;
+	}
+
+	public synchronized int getConsecutiveFailures() {
+		return this.consecutiveFailures;
+	}
+
+	/**
+	 * @return The time in ms the circuit stays open before the next probe, 0 if it is closed.
+	 */
+	public synchronized long getBackoff() {
+		return this.backoff;
+	}
+
+	/**
+	 * @return How often the circuit opened after having been closed.
+	 */
+	public synchronized long getOpenedCount() {
+		return this.openedCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return state + " (failures=" + consecutiveFailures + ", backoff=" + backoff + ")";
+	}
+}
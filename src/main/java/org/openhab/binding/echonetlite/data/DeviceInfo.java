@@ -1,5 +1,7 @@
 package org.openhab.binding.echonetlite.data;
 
+import java.net.InetSocketAddress;
+
 /**
  * <p>
  * Device Information
@@ -13,6 +15,23 @@ public class DeviceInfo {
 	private int port = 3610;
 	private byte[] ehd = {0x10, (byte) 0x81};
 	private byte[] edataHead;
+	private int seoj;
+	private int deoj;
+	private int esv;
+	private boolean setI = false;
+	private byte[] readbackEpcs = null;
+	private final InFlightWindow inFlightWindow = new InFlightWindow(1);
+	private final TokenBucket tokenBucket = new TokenBucket();
+	private final DeviceHealth health = new DeviceHealth();
+	private final PropertyValues propertyValues = new PropertyValues();
+	private volatile InetSocketAddress address;
+	private volatile long addressExpiresAt;
+	private volatile boolean addressCached = false;
+	private volatile PropertyMap announcePropertyMap;
+	private volatile PropertyMap setPropertyMap;
+	private volatile PropertyMap getPropertyMap;
+	private volatile boolean propertyMapsLoaded = false;
+	private volatile long propertyMapsRetryAt = System.nanoTime();
 
 	public String getHost() {
 		return this.host;
@@ -20,6 +39,7 @@ public class DeviceInfo {
 
 	public void setHost(String host) {
 		this.host = host;
+		invalidateAddress();
 	}
 
 	public int getPort() {
@@ -28,6 +48,7 @@ public class DeviceInfo {
 
 	public void setPort(int port) {
 		this.port = port;
+		invalidateAddress();
 	}
 
 	public byte[] getEhd() {
@@ -44,5 +65,180 @@ public class DeviceInfo {
 
 	public void setEdataHead(byte[] edataHead) {
 		this.edataHead = edataHead;
+		// <SEOJ><DEOJ><ESV><OPC>
+		this.seoj = (edataHead[0] & 0xFF) << 16 | (edataHead[1] & 0xFF) << 8 | (edataHead[2] & 0xFF);
+		this.deoj = (edataHead[3] & 0xFF) << 16 | (edataHead[4] & 0xFF) << 8 | (edataHead[5] & 0xFF);
+		this.esv = edataHead[6] & 0xFF;
+	}
+
+	/**
+	 * @return The source object, as configured in EDATA_HEAD.
+	 */
+	public int getSeoj() {
+		return this.seoj;
+	}
+
+	/**
+	 * @return The destination object, as configured in EDATA_HEAD.
+	 */
+	public int getDeoj() {
+		return this.deoj;
+	}
+
+	/**
+	 * @return The service, as configured in EDATA_HEAD.
+	 */
+	public int getEsv() {
+		return this.esv;
+	}
+
+	/**
+	 * @return Whether values are written with SetI, which the device only answers if it fails:
+	 *         configured for the device, or the ESV of EDATA_HEAD.
+	 */
+	public boolean isSetI() {
+		return this.setI || this.esv == 0x60;
+	}
+
+	public void setSetI(boolean setI) {
+		this.setI = setI;
+	}
+
+	/**
+	 * @return The EPCs read back with SetGet when a value is written, null to write with SetC.
+	 */
+	public byte[] getReadbackEpcs() {
+		return this.readbackEpcs;
+	}
+
+	public void setReadbackEpcs(byte[] readbackEpcs) {
+		this.readbackEpcs = readbackEpcs;
+	}
+
+	/**
+	 * @return The number of requests which may be outstanding at this device at the same time.
+	 */
+	public int getWindow() {
+		return this.inFlightWindow.getSize();
+	}
+
+	public void setWindow(int window) {
+		this.inFlightWindow.setSize(window);
+	}
+
+	public InFlightWindow getInFlightWindow() {
+		return this.inFlightWindow;
+	}
+
+	/**
+	 * @return The rate limit of the frames sent to the device.
+	 */
+	public TokenBucket getTokenBucket() {
+		return this.tokenBucket;
+	}
+
+	/**
+	 * @return Whether the device answers, i.e. whether requests are sent to it.
+	 */
+	public DeviceHealth getHealth() {
+		return this.health;
+	}
+
+	/**
+	 * @return The values last received from the device object.
+	 */
+	public PropertyValues getPropertyValues() {
+		return this.propertyValues;
+	}
+
+	/**
+	 * @return The resolved address of host and port, or null if it has not been resolved
+	 *         (yet) or could not be resolved.
+	 */
+	public InetSocketAddress getAddress() {
+		return this.address;
+	}
+
+	/**
+	 * Caches the result of resolving host and port.
+	 *
+	 * @param address The resolved address, or null if the host could not be resolved
+	 * @param expiresAt When to resolve again, in {@link System#nanoTime()}
+	 */
+	public void setAddress(InetSocketAddress address, long expiresAt) {
+		this.address = address != null && !address.isUnresolved() ? address : null;
+		this.addressExpiresAt = expiresAt;
+		this.addressCached = true;
+	}
+
+	/**
+	 * @return Whether host and port have to be resolved (again).
+	 */
+	public boolean isAddressExpired(long now) {
+		return !this.addressCached || now - this.addressExpiresAt >= 0;
+	}
+
+	private void invalidateAddress() {
+		this.addressCached = false;
+		this.address = null;
+	}
+
+	/**
+	 * @return The properties announced by the device object, or null if not known.
+	 */
+	public PropertyMap getAnnouncePropertyMap() {
+		return this.announcePropertyMap;
+	}
+
+	/**
+	 * @return The properties the device object accepts Set for, or null if not known.
+	 */
+	public PropertyMap getSetPropertyMap() {
+		return this.setPropertyMap;
+	}
+
+	/**
+	 * @return The properties the device object answers Get for, or null if not known.
+	 */
+	public PropertyMap getGetPropertyMap() {
+		return this.getPropertyMap;
+	}
+
+	/**
+	 * Caches the property maps read from the device object; a map it did not answer is null.
+	 */
+	public void setPropertyMaps(PropertyMap announce, PropertyMap set, PropertyMap get) {
+		this.announcePropertyMap = announce;
+		this.setPropertyMap = set;
+		this.getPropertyMap = get;
+		this.propertyMapsLoaded = true;
+	}
+
+	/**
+	 * Records that the property maps could not be read.
+	 *
+	 * @param retryAt When to try again, in {@link System#nanoTime()}
+	 */
+	public void setPropertyMapsFailed(long retryAt) {
+		this.propertyMapsRetryAt = retryAt;
+		this.propertyMapsLoaded = false;
+	}
+
+	/**
+	 * @return Whether the property maps have to be read (again).
+	 */
+	public boolean isPropertyMapsDue(long now) {
+		return !this.propertyMapsLoaded && now - this.propertyMapsRetryAt >= 0;
+	}
+
+	/**
+	 * Forgets the property maps, e.g. because the device objects of the node changed.
+	 */
+	public void invalidatePropertyMaps() {
+		this.announcePropertyMap = null;
+		this.setPropertyMap = null;
+		this.getPropertyMap = null;
+		this.propertyMapsLoaded = false;
+		this.propertyMapsRetryAt = System.nanoTime();
 	}
 }
@@ -0,0 +1,137 @@
+package org.openhab.binding.echonetlite.data;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * <p>
+ * Limits the number of requests outstanding at a device. Requests beyond the limit are
+ * queued and started, in order, as soon as an outstanding request is answered or given up.
+ * A queued request which is given up is taken out of the queue with {@link #remove}.
+ * </p>
+ * <p>
+ * Priority requests, i.e. commands of the user, are queued apart and started before the
+ * others, i.e. the polls. So that the others are not held back forever, one of them is
+ * started after {@link #MAX_PRIORITY_IN_A_ROW} priority requests while they are waiting.
+ * </p>
+ *
+ * @author Kazuhiro Matsuda
+ * @version 1.0
+ */
+public class InFlightWindow {
+	/** Number of priority requests started in a row while others are waiting. */
+	public static final int MAX_PRIORITY_IN_A_ROW = 4;
+
+	private int size;
+	private int inFlight = 0;
+	private final Queue<Runnable> waiting = new ArrayDeque<>();
+	private final Queue<Runnable> waitingPriority = new ArrayDeque<>();
+	private int priorityInARow = 0;
+
+	public InFlightWindow(int size) {
+		setSize(size);
+	}
+
+	public int getSize() {
+		synchronized (this) {
+			return this.size;
+		}
+	}
+
+	public void setSize(int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("window size must be at least 1");
+		}
+		Queue<Runnable> ready = new ArrayDeque<>();
+		synchronized (this) {
+			this.size = size;
+			while (inFlight < size && getQueued() > 0) {
+				inFlight++;
+				ready.add(next());
+			}
+		}
+		for (Runnable request : ready) {
+			request.run();
+		}
+	}
+
+	/**
+	 * Takes a slot for a request.
+	 *
+	 * @param request Started with the slot once one is free, if there is none now.
+	 * @return true if the slot was taken and the caller may start the request at once.
+	 */
+	public boolean acquire(Runnable request) {
+		return acquire(request, false);
+	}
+
+	/**
+	 * Takes a slot for a request, see {@link #acquire(Runnable)}.
+	 *
+	 * @param priority Whether the request is started before the others waiting.
+	 */
+	public boolean acquire(Runnable request, boolean priority) {
+		synchronized (this) {
+			if (inFlight < size) {
+				inFlight++;
+				return true;
+			}
+			(priority ? waitingPriority : waiting).add(request);
+			return false;
+		}
+	}
+
+	/**
+	 * Takes a request which was given up out of the queue, so that it does not take a slot.
+	 *
+	 * @return true if the request was queued, false if it has been started or handed a slot
+	 *         already, in which case it has to {@link #release()} that.
+	 */
+	public boolean remove(Runnable request) {
+		synchronized (this) {
+			return waitingPriority.remove(request) || waiting.remove(request);
+		}
+	}
+
+	/**
+	 * Gives back the slot of a request, handing it to the next queued request if any.
+	 */
+	public void release() {
+		Runnable next;
+		synchronized (this) {
+			next = next();
+			if (next == null && inFlight > 0) {
+				inFlight--;
+			}
+		}
+		if (next != null) {
+			next.run();
+		}
+	}
+
+	public synchronized int getInFlight() {
+		return this.inFlight;
+	}
+
+	public synchronized int getQueued() {
+		return this.waiting.size() + this.waitingPriority.size();
+	}
+
+	/**
+	 * @return The request to start next, null if none is waiting; called with the lock held.
+	 */
+	private Runnable next() {
+		if (!waitingPriority.isEmpty()) {
+			if (waiting.isEmpty()) {
+				priorityInARow = 0;
+				return waitingPriority.poll();
+			}
+			if (priorityInARow < MAX_PRIORITY_IN_A_ROW) {
+				priorityInARow++;
+				return waitingPriority.poll();
+			}
+		}
+		priorityInARow = 0;
+		return waiting.poll();
+	}
+}
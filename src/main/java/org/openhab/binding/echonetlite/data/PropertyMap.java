@@ -0,0 +1,72 @@
+package org.openhab.binding.echonetlite.data;
+
+/**
+ * <p>
+ * The properties (EPCs) a device object supports for one kind of access, as read from its
+ * announce (0x9D), Set (0x9E) or Get (0x9F) property map.
+ * </p>
+ *
+ * @author Kazuhiro Matsuda
+ * @version 1.0
+ */
+public class PropertyMap {
+	private final long[] epcs = new long[4];
+	private int size = 0;
+
+	/**
+	 * Parses the EDT of a property map: the number of properties followed either by the EPCs
+	 * (less than 16 properties) or by a 16 byte bitmap, where bit <code>j</code> of byte
+	 * <code>i</code> stands for EPC <code>0x80 + 0x10 * j + i</code>.
+	 */
+	public static PropertyMap parse(byte[] edt) {
+		PropertyMap map = new PropertyMap();
+		if (edt.length == 0) {
+			return map;
+		}
+		int count = edt[0] & 0xFF;
+		if (count < 16) {
+			for (int i = 1; i <= count && i < edt.length; i++) {
+				map.add(edt[i] & 0xFF);
+			}
+		} else {
+			for (int i = 0; i < 16 && 1 + i < edt.length; i++) {
+				for (int j = 0; j < 8; j++) {
+					if ((edt[1 + i] & (1 << j)) != 0) {
+						map.add(0x80 + 0x10 * j + i);
+					}
+				}
+			}
+		}
+		return map;
+	}
+
+	public boolean contains(int epc) {
+		epc &= 0xFF;
+		return (this.epcs[epc >> 6] & (1L << epc)) != 0;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	private void add(int epc) {
+		if (!contains(epc)) {
+			this.epcs[epc >> 6] |= 1L << epc;
+			this.size++;
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("[");
+		for (int epc = 0; epc < 256; epc++) {
+			if (contains(epc)) {
+				if (builder.length() > 1) {
+					builder.append(", ");
+				}
+				builder.append(String.format("%02X", epc));
+			}
+		}
+		return builder.append(']').toString();
+	}
+}
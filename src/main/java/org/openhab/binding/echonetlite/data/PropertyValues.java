@@ -0,0 +1,46 @@
+package org.openhab.binding.echonetlite.data;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>
+ * The EDT last received for each EPC of a device object, as sent by the device. Updates of
+ * items are only published when these bytes change.
+ * </p>
+ * <p>
+ * Safe for use by the poll threads and the receiver thread at the same time. The arrays
+ * stored are never changed.
+ * </p>
+ *
+ * @author Kazuhiro Matsuda
+ * @version 1.0
+ */
+public class PropertyValues {
+	private final AtomicReferenceArray<byte[]> edts = new AtomicReferenceArray<byte[]>(256);
+
+	/**
+	 * @return The EDT last received for the EPC, or null if none was received; not to be
+	 *         modified.
+	 */
+	public byte[] get(int epc) {
+		return this.edts.get(epc & 0xFF);
+	}
+
+	/**
+	 * Replaces the EDT of the EPC, if it is still the one the caller compared with.
+	 *
+	 * @return false if another thread stored an EDT in the meantime.
+	 */
+	public boolean compareAndSet(int epc, byte[] expected, byte[] edt) {
+		return this.edts.compareAndSet(epc & 0xFF, expected, edt);
+	}
+
+	/**
+	 * Forgets all EDTs, so that the next ones received are published.
+	 */
+	public void clear() {
+		for (int i = 0; i < this.edts.length(); i++) {
+			this.edts.set(i, null);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package org.openhab.binding.echonetlite.data;
+
+/**
+ * <p>
+ * Limits the rate of the frames sent to a device: a bucket of <code>burst</code> tokens,
+ * refilled at <code>rate</code> tokens per second, of which every frame takes one. A frame
+ * finding the bucket empty is not dropped; it reserves the next token to come and is sent
+ * once that has been refilled, so waiting frames go out in the order they came.
+ * </p>
+ * <p>
+ * A rate of 0 (the default) does not limit the frames.
+ * </p>
+ *
+ * @author Kazuhiro Matsuda
+ * @version 1.0
+ */
+public class TokenBucket {
+	private double rate = 0;
+	private int burst = 1;
+	/** Tokens available, negative for the ones reserved by waiting frames. */
+	private double tokens = 1;
+	private long refilledAt = System.nanoTime();
+	private int waiting = 0;
+
+	/**
+	 * @return Frames per second, 0 if not limited.
+	 */
+	public synchronized double getRate() {
+		return this.rate;
+	}
+
+	public synchronized void setRate(double rate) {
+		if (rate < 0) {
+			throw new IllegalArgumentException("rate must not be negative");
+		}
+		refill(System.nanoTime());
+		this.rate = rate;
+	}
+
+	/**
+	 * @return Frames which may be sent at once after a pause.
+	 */
+	public synchronized int getBurst() {
+		return this.burst;
+	}
+
+	public synchronized void setBurst(int burst) {
+		if (burst < 1) {
+			throw new IllegalArgumentException("burst must be at least 1");
+		}
+		refill(System.nanoTime());
+		this.burst = burst;
+		this.tokens = Math.min(this.tokens, burst);
+	}
+
+	/**
+	 * Takes a token for a frame, reserving the next one to come if the bucket is empty. A
+	 * frame which has to wait is counted as waiting until {@link #sent()}.
+	 *
+	 * @param now The current {@link System#nanoTime()}
+	 * @return The time in ns until the frame may be sent, 0 if at once.
+	 */
+	public synchronized long reserve(long now) {
+		if (this.rate <= 0) {
+			return 0;
+		}
+		refill(now);
+		this.tokens -= 1;
+		if (this.tokens >= 0) {
+			return 0;
+		}
+		this.waiting++;
+		return (long) Math.ceil(-this.tokens * 1e9 / this.rate);
+	}
+
+	/**
+	 * Counts a frame which waited for its token as sent, or given up.
+	 */
+	public synchronized void sent() {
+		if (this.waiting > 0) {
+			this.waiting--;
+		}
+	}
+
+	/**
+	 * @return The number of frames waiting for their token.
+	 */
+	public synchronized int getWaiting() {
+		return this.waiting;
+	}
+
+	private void refill(long now) {
+		if (this.rate > 0) {
+			this.tokens = Math.min(this.burst, this.tokens + (now - this.refilledAt) * this.rate / 1e9);
+		}
+		this.refilledAt = now;
+	}
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.echonetlite.internal;
+
+import org.openhab.binding.echonetlite.data.DeviceInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Resolves the hosts of the devices ahead of time, on a thread of its own.
+ * <p>
+ * The resolved address is cached in the {@link DeviceInfo} and resolved again after
+ * <code>ttl</code> ms, so that requests never wait for a name lookup; a device whose host
+ * could not be resolved is tried again after {@link #NEGATIVE_TTL} ms. Until its address is
+ * known, a device is not polled.
+ * </p>
+ * <p>
+ * Name lookups may block for seconds, so they are only ever done on the resolver thread; other
+ * threads ask for a new device to be resolved with {@link #resolveSoon()}.
+ * </p>
+ *
+ * @author Kazuhiro Matsuda
+ * @since 1.8.0
+ */
+class ECHONETLiteAddressResolver {
+
+	private static final Logger logger = LoggerFactory.getLogger(ECHONETLiteAddressResolver.class);
+
+	/** Default time in milliseconds a resolved address is used. */
+	static final long DEFAULT_TTL = TimeUnit.MINUTES.toMillis(10);
+
+	/** Time in milliseconds before a host which could not be resolved is tried again. */
+	static final long NEGATIVE_TTL = TimeUnit.SECONDS.toMillis(30);
+
+	/** Time in milliseconds between two checks for expired addresses. */
+	private static final long CHECK_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+	private final Map<String, DeviceInfo> devices;
+
+	/** Called on the resolver thread when the address of a device changed. */
+	private final Runnable changeListener;
+
+	/** Devices whose host could not be resolved, to warn about them only once. */
+	private final Set<String> unresolvedDevices =
+		Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private volatile long ttl = DEFAULT_TTL;
+
+	private ScheduledExecutorService executor = null;
+
+	/** Whether a check for devices to resolve is scheduled already. */
+	private final AtomicBoolean checkScheduled = new AtomicBoolean(false);
+
+	/**
+	 * @param devices The devices by instance name; changes of the map are picked up
+	 * @param changeListener Called when the address of a device changed
+	 */
+	ECHONETLiteAddressResolver(Map<String, DeviceInfo> devices, Runnable changeListener) {
+		this.devices = devices;
+		this.changeListener = changeListener;
+	}
+
+	void setTtl(long ttl) {
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Starts checking for expired addresses, unless this is done already.
+	 */
+	synchronized void start() {
+		if (executor != null) {
+			return;
+		}
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ECHONETLite resolver");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				resolveExpired();
+			}
+		}, 0, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	synchronized void stop() {
+		if (executor == null) {
+			return;
+		}
+		executor.shutdownNow();
+		executor = null;
+		checkScheduled.set(false);
+	}
+
+	/**
+	 * Has the devices without an address, or with an expired one, resolved on the resolver
+	 * thread as soon as possible; returns at once. Does nothing unless {@link #start()}ed.
+	 */
+	synchronized void resolveSoon() {
+		if (executor == null || !checkScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				checkScheduled.set(false);
+				resolveExpired();
+			}
+		});
+	}
+
+	private void resolveExpired() {
+		boolean changed = false;
+		long now = System.nanoTime();
+		for (Map.Entry<String, DeviceInfo> device : devices.entrySet()) {
+			DeviceInfo deviceInfo = device.getValue();
+			if (deviceInfo.getHost() != null && deviceInfo.isAddressExpired(now)) {
+				changed |= resolve(device.getKey(), deviceInfo);
+			}
+		}
+		if (changed) {
+			changeListener.run();
+		}
+	}
+
+	/**
+	 * Resolves the host of a device and caches the result; called on the resolver thread.
+	 *
+	 * @return Whether the address changed.
+	 */
+	private boolean resolve(String deviceId, DeviceInfo deviceInfo) {
+		InetSocketAddress oldAddress = deviceInfo.getAddress();
+		InetSocketAddress address;
+		long expiresAt;
+		try {
+			address = new InetSocketAddress(InetAddress.getByName(deviceInfo.getHost()),
+				deviceInfo.getPort());
+			expiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttl);
+			if (unresolvedDevices.remove(deviceId)) {
+				logger.info("Host '{}' of ECHONETLite device '{}' resolved to {}",
+					deviceInfo.getHost(), deviceId, address.getAddress().getHostAddress());
+			}
+		} catch (UnknownHostException e) {
+			address = null;
+			expiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(NEGATIVE_TTL);
+			if (unresolvedDevices.add(deviceId)) {
+				logger.warn("Could not resolve host '{}' of ECHONETLite device '{}', "
+					+ "it is not polled until it can be resolved", deviceInfo.getHost(), deviceId);
+			}
+		}
+		deviceInfo.setAddress(address, expiresAt);
+		return address == null ? oldAddress != null : !address.equals(oldAddress);
+	}
+}
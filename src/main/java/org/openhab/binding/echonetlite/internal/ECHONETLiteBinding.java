@@ -8,12 +8,14 @@
  */
 package org.openhab.binding.echonetlite.internal;
 
-import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.openhab.binding.echonetlite.ECHONETLiteBindingProvider;
+import org.openhab.binding.echonetlite.data.DeviceHealth;
 import org.openhab.binding.echonetlite.data.DeviceInfo;
+import org.openhab.binding.echonetlite.data.PropertyMap;
 import org.openhab.binding.echonetlite.util.CommonUtils;
 import org.openhab.core.binding.AbstractActiveBinding;
+import org.openhab.core.binding.BindingProvider;
 import org.openhab.core.library.types.DecimalType;
 import org.openhab.core.library.types.StringType;
 import org.openhab.core.types.Command;
@@ -25,11 +27,27 @@ import org.osgi.service.cm.ManagedService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.List;
@@ -43,7 +61,8 @@ import java.util.List;
  * @since 1.8.0
  */
 public class ECHONETLiteBinding extends AbstractActiveBinding<ECHONETLiteBindingProvider>
-	implements ManagedService {
+	implements ManagedService, ECHONETLitePollScheduler.Poller,
+	ECHONETLiteUDPConnector.NotificationListener, ECHONETLiteDiscovery.DiscoveryListener {
 
 	private static final Logger logger = LoggerFactory.getLogger(ECHONETLiteBinding.class);
 
@@ -54,20 +73,122 @@ public class ECHONETLiteBinding extends AbstractActiveBinding<ECHONETLiteBinding
 
 	private long refreshInterval = TimeUnit.SECONDS.toMillis(60);
 
-	private Map<String, Long> lastUpdateMap = new HashMap<String, Long>();
+	private Map<String, DeviceInfo> deviceMap = new ConcurrentHashMap<>();
 
-	private Map<String, DeviceInfo> deviceMap = new HashMap<>();
+	/** Devices which are bound to items but not configured, to warn about them only once. */
+	private Set<String> unknownDevices = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
-	private Map<String, State> itemValueMap = new HashMap<>();
+	/** Items bound to an EPC missing from the property map of their device, to warn only once. */
+	private Set<String> rejectedItems = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private Map<String, State> itemValueMap = new ConcurrentHashMap<>();
+
+	/** The UDP transport shared by all requests of this binding. */
+	private final ECHONETLiteUDPConnector udpConnector = new ECHONETLiteUDPConnector(3610);
+
+	/** Fires the polls of the in-binding items when they are due. */
+	private final ECHONETLitePollScheduler pollScheduler =
+		new ECHONETLitePollScheduler(this, ECHONETLitePollScheduler.DEFAULT_CONCURRENCY);
+
+	/**
+	 * The in-binding items by the (address, EOJ, EPC) they are bound to, to dispatch the
+	 * notifications of the devices. Changed item by item when a binding changes, and built
+	 * anew when all of them are gone through.
+	 */
+	private volatile ConcurrentMap<String, BoundProperty> notificationIndex =
+		new ConcurrentHashMap<>();
+
+	/** The key each item is indexed under in {@link #notificationIndex}; guarded by this. */
+	private Map<String, String> notificationKeys = new HashMap<>();
+
+	/**
+	 * The items bound to a property of a device object, and the device the values of the
+	 * property are kept by.
+	 */
+	private static final class BoundProperty {
+		final DeviceInfo deviceInfo;
+		/** Read on the receiver thread while items are added or removed. */
+		final List<String> itemNames = new CopyOnWriteArrayList<>();
+
+		BoundProperty(DeviceInfo deviceInfo) {
+			this.deviceInfo = deviceInfo;
+		}
+	}
+
+	/** Resolves the hosts of the devices ahead of the requests. */
+	private final ECHONETLiteAddressResolver addressResolver =
+		new ECHONETLiteAddressResolver(deviceMap, new Runnable() {
+			@Override
+			public void run() {
+				updateBindings();
+			}
+		});
+
+	/**
+	 * Sends the commands and state updates off the event bus, in order per property, and
+	 * only the last of a burst if enabled.
+	 */
+	private final ECHONETLiteCommandDispatcher commandDispatcher =
+		new ECHONETLiteCommandDispatcher(new ECHONETLiteCommandDispatcher.Sender() {
+			@Override
+			public boolean sendCommand(String itemName, Command command) {
+				return ECHONETLiteBinding.this.sendCommand(itemName, command);
+			}
+
+			@Override
+			public boolean sendUpdate(String itemName, State state) {
+				return ECHONETLiteBinding.this.sendUpdate(itemName, state);
+			}
+		});
+
+	/** Figures of the requests, published as MBean. */
+	private final ECHONETLiteStatistics statistics =
+		new ECHONETLiteStatistics(udpConnector, pollScheduler, commandDispatcher, deviceMap);
+
+	/** Finds the device objects on the network, if enabled. */
+	private final ECHONETLiteDiscovery discovery = new ECHONETLiteDiscovery(udpConnector, this);
+
+	private volatile boolean discoveryEnabled = false;
+
+	private long discoveryInterval = ECHONETLiteDiscovery.DEFAULT_INTERVAL;
+
+	/** Number of timeouts in a row after which a device is no longer polled. */
+	private int failureThreshold = DeviceHealth.DEFAULT_FAILURE_THRESHOLD;
+
+	/** Time in ms before such a device is probed, doubled up to failureMaxBackoff. */
+	private long failureBackoff = DeviceHealth.DEFAULT_BACKOFF;
+
+	private long failureMaxBackoff = DeviceHealth.DEFAULT_MAX_BACKOFF;
+
+	private static final int ESV_GET = 0x62;
+	private static final int ESV_SETI = 0x60;
+	private static final int ESV_SETC = 0x61;
+	private static final int ESV_SETGET = 0x6E;
+	private static final int ESV_GET_RES = 0x72;
+	private static final int ESV_GET_SNA = 0x52;
+
+	/** EPCs of the announce, Set and Get property maps, in this order. */
+	private static final int EPC_ANNOUNCE_PROPERTY_MAP = 0x9D;
+	private static final int EPC_SET_PROPERTY_MAP = 0x9E;
+	private static final int EPC_GET_PROPERTY_MAP = 0x9F;
+
+	/** Time in milliseconds before property maps which could not be read are tried again. */
+	private static final long PROPERTY_MAP_RETRY = TimeUnit.MINUTES.toMillis(10);
 
 	private final static Pattern CONFIG_PATTERN = Pattern.compile(
-		"^(.+?)\\.(host|port|ehd|edata_head)$", Pattern.CASE_INSENSITIVE);
+		"^(.+?)\\.(host|port|ehd|edata_head|window|rate|burst|seti|readback)$", Pattern.CASE_INSENSITIVE);
+
+	public ECHONETLiteBinding() {
+		udpConnector.setNotificationListener(this);
+	}
 
 	@Override
 	public void updated(Dictionary<String, ?> config) throws ConfigurationException {
 		if (config == null || config.isEmpty())
 			throw new IllegalArgumentException("config is empty");
 		else {
+			boolean multicast = true;
+			String multicastInterface = null;
 			for (final Enumeration<String> e = config.keys(); e.hasMoreElements();) {
 				final String key = e.nextElement();
 				final String value = StringUtils.trim((String) config.get(key));
@@ -76,6 +197,54 @@ public class ECHONETLiteBinding extends AbstractActiveBinding<ECHONETLiteBinding
 				if (StringUtils.isBlank(value)) {
 					continue;
 				}
+				if (("concurrency").equalsIgnoreCase(key)) {
+					pollScheduler.setConcurrency(Integer.parseInt(value));
+					continue;
+				}
+				if (("multicast").equalsIgnoreCase(key)) {
+					multicast = Boolean.parseBoolean(value);
+					continue;
+				}
+				if (("interface").equalsIgnoreCase(key)) {
+					multicastInterface = value;
+					continue;
+				}
+				if (("address_ttl").equalsIgnoreCase(key)) {
+					addressResolver.setTtl(Long.parseLong(value));
+					continue;
+				}
+				if (("discovery").equalsIgnoreCase(key)) {
+					discoveryEnabled = Boolean.parseBoolean(value);
+					continue;
+				}
+				if (("discovery_interval").equalsIgnoreCase(key)) {
+					discoveryInterval = Long.parseLong(value);
+					continue;
+				}
+				if (("discovery_window").equalsIgnoreCase(key)) {
+					discovery.setWindow(Long.parseLong(value));
+					continue;
+				}
+				if (("command_debounce").equalsIgnoreCase(key)) {
+					commandDispatcher.setDebounce(Long.parseLong(value));
+					continue;
+				}
+				if (("command_threads").equalsIgnoreCase(key)) {
+					commandDispatcher.setThreads(Integer.parseInt(value));
+					continue;
+				}
+				if (("failure_threshold").equalsIgnoreCase(key)) {
+					failureThreshold = Integer.parseInt(value);
+					continue;
+				}
+				if (("failure_backoff").equalsIgnoreCase(key)) {
+					failureBackoff = Long.parseLong(value);
+					continue;
+				}
+				if (("failure_max_backoff").equalsIgnoreCase(key)) {
+					failureMaxBackoff = Long.parseLong(value);
+					continue;
+				}
 				final Matcher matcher = CONFIG_PATTERN.matcher(key);
 				if (matcher.matches()) {
 					final String device = matcher.group(1);
@@ -94,9 +263,20 @@ public class ECHONETLiteBinding extends AbstractActiveBinding<ECHONETLiteBinding
 						deviceInfo.setEhd(CommonUtils.hexStringToByteArray(value));
 					} else if (("edata_head").equalsIgnoreCase(property)) {
 						deviceInfo.setEdataHead(CommonUtils.hexStringToByteArray(value));
+					} else if (("window").equalsIgnoreCase(property)) {
+						deviceInfo.setWindow(Integer.parseInt(value));
+					} else if (("rate").equalsIgnoreCase(property)) {
+						deviceInfo.getTokenBucket().setRate(Double.parseDouble(value));
+					} else if (("burst").equalsIgnoreCase(property)) {
+						deviceInfo.getTokenBucket().setBurst(Integer.parseInt(value));
+					} else if (("seti").equalsIgnoreCase(property)) {
+						deviceInfo.setSetI(Boolean.parseBoolean(value));
+					} else if (("readback").equalsIgnoreCase(property)) {
+						deviceInfo.setReadbackEpcs(parseEpcs(value));
 					}
 				}
 			}
+			udpConnector.setMulticast(multicast, multicastInterface);
 		}
 	}
 
@@ -111,6 +291,7 @@ public class ECHONETLiteBinding extends AbstractActiveBinding<ECHONETLiteBinding
 	@Override
 	public void activate() {
 		super.activate();
+		statistics.register();
 		setProperlyConfigured(true);
 	}
 
@@ -126,6 +307,7 @@ public class ECHONETLiteBinding extends AbstractActiveBinding<ECHONETLiteBinding
 
 		// read further config parameters here ...
 
+		statistics.register();
 		setProperlyConfigured(true);
 	}
 
@@ -155,7 +337,12 @@ public class ECHONETLiteBinding extends AbstractActiveBinding<ECHONETLiteBinding
 	 *        </ul>
 	 */
 	public void deactivate(final int reason) {
-
+		discovery.stop();
+		addressResolver.stop();
+		pollScheduler.stop();
+		commandDispatcher.stop();
+		udpConnector.disconnect();
+		statistics.unregister();
 	}
 
 
@@ -180,45 +367,304 @@ public class ECHONETLiteBinding extends AbstractActiveBinding<ECHONETLiteBinding
 	 */
 	@Override
 	protected void execute() {
+		updateBindings();
+	}
+
+	/**
+	 * @{inheritDoc
+	 */
+	@Override
+	public void bindingChanged(BindingProvider provider, String itemName) {
+		super.bindingChanged(provider, itemName);
+		updateBinding(itemName);
+	}
+
+	/**
+	 * @{inheritDoc
+	 */
+	@Override
+	public void allBindingsChanged(BindingProvider provider) {
+		super.allBindingsChanged(provider);
+		updateBindings();
+	}
+
+	/**
+	 * Brings the poll schedule and the notification index in line with the in-binding items
+	 * of all providers.
+	 */
+	private synchronized void updateBindings() {
+		// new devices are resolved by the resolver thread, which updates the bindings again
+		addressResolver.start();
+		long now = System.nanoTime();
+		for (DeviceInfo deviceInfo : deviceMap.values()) {
+			deviceInfo.getHealth().setPolicy(failureThreshold, failureBackoff, failureMaxBackoff);
+			if (deviceInfo.getHost() != null && deviceInfo.getAddress() == null
+				&& deviceInfo.isAddressExpired(now)) {
+				addressResolver.resolveSoon();
+			}
+		}
+
+		// an item bound by several providers is served as the first of them binds it
+		Set<String> itemNames = new HashSet<>();
+		ConcurrentMap<String, BoundProperty> index = new ConcurrentHashMap<>();
+		Map<String, String> keys = new HashMap<>();
 		for (ECHONETLiteBindingProvider provider : providers) {
-			for (String itemName : provider.getInBindingItemNames()) {
-				String deviceId = provider.getDeviceId(itemName);
-				String epc = provider.getEpc(itemName);
-				long refreshInterval = provider.getRefreshInterval(itemName);
-
-				Long lastUpdateTimeStamp = lastUpdateMap.get(itemName);
-				if (lastUpdateTimeStamp == null) {
-					lastUpdateTimeStamp = 0L;
+			for (ECHONETLitePollPlan.Entry entry : provider.getPollPlan().getEntries()) {
+				if (itemNames.add(entry.getItemName())) {
+					bindItem(entry, index, keys);
 				}
+			}
+		}
+		notificationIndex = index;
+		notificationKeys = keys;
+		pollScheduler.retainAll(itemNames);
+		pollScheduler.start();
+		try {
+			udpConnector.connect();
+		} catch (IOException e) {
+			logger.error("could not listen for ECHONETLite frames", e);
+		}
+		if (discoveryEnabled) {
+			discovery.start(discoveryInterval);
+		} else {
+			discovery.stop();
+		}
+	}
+
+	/**
+	 * Applies the change of the binding of one item to the poll schedule and the notification
+	 * index, without going through the other items.
+	 */
+	private synchronized void updateBinding(String itemName) {
+		ECHONETLitePollPlan.Entry entry = null;
+		for (ECHONETLiteBindingProvider provider : providers) {
+			entry = provider.getPollEntry(itemName);
+			if (entry != null) {
+				break;
+			}
+		}
+		unindexItem(itemName);
+		if (entry == null) {
+			pollScheduler.cancel(itemName);
+			return;
+		}
+		bindItem(entry, notificationIndex, notificationKeys);
+		DeviceInfo deviceInfo = deviceMap.get(entry.getDeviceId());
+		if (deviceInfo != null && deviceInfo.getHost() != null && deviceInfo.getAddress() == null) {
+			addressResolver.resolveSoon();
+		}
+	}
 
-				long age = System.currentTimeMillis() - lastUpdateTimeStamp;
-				Boolean needsUpdate = (age >= refreshInterval) && (refreshInterval != 0);
+	/**
+	 * Schedules the polls of an in-binding item, unless its device does not answer Get for its
+	 * EPC, and indexes it for the notifications of its device; called with the lock held.
+	 */
+	private void bindItem(ECHONETLitePollPlan.Entry entry, Map<String, BoundProperty> index,
+		Map<String, String> keys) {
+		String itemName = entry.getItemName();
+		String deviceId = entry.getDeviceId();
+		DeviceInfo deviceInfo = deviceMap.get(deviceId);
+		long interval = entry.getRefreshInterval();
+		// scheduled even if the Get map lacks the EPC, the poll leaves it out while it does
+		if (deviceInfo != null && interval > 0) {
+			isSupported(itemName, deviceId, entry.getEpcCode(), deviceInfo.getGetPropertyMap(),
+				"Get");
+		} else if (deviceInfo != null) {
+			isSupported(itemName, deviceId, entry.getEpcCode(),
+				deviceInfo.getAnnouncePropertyMap(), "announcement");
+		}
+		pollScheduler.schedule(itemName, deviceId, entry.getEpc(), interval,
+			entry.getMaxRefreshInterval());
 
-				if (needsUpdate) {
-					String response = null;
+		if (deviceInfo != null && deviceInfo.getAddress() != null) {
+			String key = notificationKey(deviceInfo.getAddress().getAddress(),
+				deviceInfo.getDeoj(), entry.getEpcCode() & 0xFF);
+			BoundProperty property = index.get(key);
+			if (property == null) {
+				property = new BoundProperty(deviceInfo);
+				property.itemNames.add(itemName);
+				index.put(key, property);
+			} else {
+				property.itemNames.add(itemName);
+			}
+			keys.put(itemName, key);
+		}
+	}
 
-					DeviceInfo deviceInfo = deviceMap.get(deviceId);
-					if (deviceInfo == null) return;
+	/**
+	 * Takes an item out of the notification index; called with the lock held.
+	 */
+	private void unindexItem(String itemName) {
+		String key = notificationKeys.remove(itemName);
+		if (key == null) {
+			return;
+		}
+		BoundProperty property = notificationIndex.get(key);
+		if (property != null) {
+			property.itemNames.remove(itemName);
+			if (property.itemNames.isEmpty()) {
+				notificationIndex.remove(key, property);
+			}
+		}
+	}
 
-					byte[] edtBytes = CommonUtils.hexStringToByteArray("");
-					byte[] dataByte = buildData(deviceInfo, epc, edtBytes);
+	/**
+	 * Adds the device objects found on the network. A configured instance of the same name
+	 * is kept as it is. Called on the discovery thread.
+	 */
+	@Override
+	public void devicesDiscovered(Map<String, DeviceInfo> devices) {
+		boolean added = false;
+		for (Map.Entry<String, DeviceInfo> device : devices.entrySet()) {
+			if (deviceMap.putIfAbsent(device.getKey(), device.getValue()) == null) {
+				unknownDevices.remove(device.getKey());
+				added = true;
+			}
+		}
+		if (added) {
+			updateBindings();
+		}
+	}
 
-					try {
-						ECHONETLiteConnectingThread connector =
-							new ECHONETLiteConnectingThread(itemName, deviceInfo.getPort(), dataByte,
-								deviceInfo.getHost(), itemValueMap.get(itemName));
+	/**
+	 * Updates the items bound to the properties announced by a device (INF or INFC), if the
+	 * value changed or the item has none yet. Called on the receiver thread of the connector.
+	 */
+	@Override
+	public void notificationReceived(InetSocketAddress source, ECHONETLiteFrame frame) {
+		Map<String, BoundProperty> index = notificationIndex;
+		int seoj = frame.getSeoj();
+		while (frame.nextProperty()) {
+			int epc = frame.getEpc();
+			if (frame.getPdc() == 0) {
+				continue;
+			}
+			if ((seoj & 0xFFFF00) == (ECHONETLiteDiscovery.NODE_PROFILE_EOJ & 0xFFFF00)
+				&& epc == ECHONETLiteDiscovery.EPC_INSTANCE_LIST_NOTIFICATION) {
+				// a node announces its device objects, e.g. when it starts up
+				invalidatePropertyMaps(source.getAddress());
+				if (discoveryEnabled) {
+					discovery.instanceListAnnounced(source.getAddress(), frame.getEdt());
+				}
+			}
+			BoundProperty property = index.get(notificationKey(source.getAddress(), seoj, epc));
+			if (property == null) {
+				// items bound to all instances of the class
+				property = index.get(notificationKey(source.getAddress(), seoj & 0xFFFF00, epc));
+			}
+			if (property != null) {
+				boolean edtChanged =
+					ECHONETLiteConnectingThread.edtChanged(property.deviceInfo, frame);
+				State state = null;
+				for (String itemName : property.itemNames) {
+					if (edtChanged || !itemValueMap.containsKey(itemName)) {
+						if (state == null) {
+							state = StringType.valueOf(frame.getEdtAsDecimal());
+						}
+						itemValueMap.put(itemName, state);
+						eventPublisher.postUpdate(itemName, state);
+					}
+				}
+			}
+		}
+	}
 
-						connector.start();
-                                        	connector.setEventPublisher(eventPublisher);
+	/**
+	 * Forgets the property maps of the device objects of a node, to read them again before
+	 * their next poll.
+	 */
+	private void invalidatePropertyMaps(InetAddress node) {
+		for (DeviceInfo deviceInfo : deviceMap.values()) {
+			if (deviceInfo.getAddress() != null && node.equals(deviceInfo.getAddress().getAddress())) {
+				deviceInfo.invalidatePropertyMaps();
+			}
+		}
+		rejectedItems.clear();
+	}
 
-						connector.join();
-					} catch (Exception e) {
-						logger.error("error occured when update");
-					}	
+	private static String notificationKey(InetAddress address, int eoj, int epc) {
+		return address.getHostAddress() + "/" + Integer.toHexString(eoj) + "/"
+			+ Integer.toHexString(epc);
+	}
 
-					lastUpdateMap.put(itemName, System.currentTimeMillis());
+	/**
+	 * Reads the given items of one device object with a single Get. Called by the poll
+	 * scheduler on one of its threads.
+	 */
+	@Override
+	public Map<String, Boolean> poll(String deviceId, Map<String, List<String>> itemNamesByEpc,
+		byte[] epcs) {
+		DeviceInfo deviceInfo = deviceMap.get(deviceId);
+		if (deviceInfo == null) {
+			if (unknownDevices.add(deviceId)) {
+				logger.warn("ECHONETLite device '{}' is not configured, cannot poll {}", deviceId,
+					itemNamesByEpc.values());
+			}
+			return Collections.emptyMap();
+		}
+		if (deviceInfo.getAddress() == null) {
+			logger.debug("Host of ECHONETLite device '{}' is not resolved, skipping the poll", deviceId);
+			return Collections.emptyMap();
+		}
+		if (!deviceInfo.getHealth().allowRequest(System.nanoTime())) {
+			logger.debug("ECHONETLite device '{}' does not answer, skipping the poll", deviceId);
+			return Collections.emptyMap();
+		}
+		if (deviceInfo.isPropertyMapsDue(System.nanoTime())) {
+			loadPropertyMaps(deviceId, deviceInfo);
+			if (deviceInfo.getHealth().getState() != DeviceHealth.State.CLOSED) {
+				// the probe was not answered
+				return Collections.emptyMap();
+			}
+		}
+		PropertyMap getPropertyMap = deviceInfo.getGetPropertyMap();
+		if (getPropertyMap != null) {
+			// leave out the EPCs the device object does not answer Get for; they stay
+			// scheduled, to be polled once the maps read again list them
+			Map<String, List<String>> supported = new LinkedHashMap<>();
+			byte[] supportedEpcs = new byte[epcs.length];
+			int i = 0;
+			for (Map.Entry<String, List<String>> property : itemNamesByEpc.entrySet()) {
+				byte epcCode = epcs[i++];
+				if (getPropertyMap.contains(epcCode)) {
+					supportedEpcs[supported.size()] = epcCode;
+					supported.put(property.getKey(), property.getValue());
+				} else {
+					for (String itemName : property.getValue()) {
+						isSupported(itemName, deviceId, epcCode, getPropertyMap, "Get");
+					}
 				}
 			}
+			if (supported.isEmpty()) {
+				return Collections.emptyMap();
+			}
+			itemNamesByEpc = supported;
+			epcs = Arrays.copyOf(supportedEpcs, supported.size());
+		}
+
+		Map<String, State> states = new HashMap<>();
+		for (List<String> itemNames : itemNamesByEpc.values()) {
+			for (String itemName : itemNames) {
+				states.put(itemName, itemValueMap.get(itemName));
+			}
+		}
+		ByteBuffer frame = udpConnector.allocateFrame();
+		ECHONETLiteFrameEncoder.encodeGet(frame, deviceInfo, CommonUtils.nextTid(), epcs);
+
+		try {
+			ECHONETLiteConnectingThread connector =
+				new ECHONETLiteConnectingThread(udpConnector, itemNamesByEpc, deviceInfo, frame,
+					states);
+
+			connector.setEventPublisher(eventPublisher);
+			connector.setStatistics(statistics.device(deviceId));
+			connector.run();
+			// the values polled are what the next poll is compared with
+			itemValueMap.putAll(connector.getReceivedStates());
+			return connector.getChangedItems();
+		} catch (Exception e) {
+			logger.error("error occured when update");
+			return Collections.emptyMap();
 		}
 	}
 
@@ -229,46 +675,148 @@ public class ECHONETLiteBinding extends AbstractActiveBinding<ECHONETLiteBinding
 	protected void internalReceiveCommand(String itemName, Command command) {
 		if (command != null) {
 			logger.debug("internalReceiveCommand ({}:{})", itemName, command);
+			commandDispatcher.submitCommand(commandKey(itemName, command), itemName, command);
+		}
+	}
 
-			for (ECHONETLiteBindingProvider provider : this.providers) {
-				String deviceId = provider.getDeviceId(itemName, command);
-				String epc = provider.getEpc(itemName, command);
-				String edt = provider.getEdt(itemName, command);
+	/**
+	 * @return The property a command is written to, the commands to which are sent in order.
+	 */
+	private String commandKey(String itemName, Command command) {
+		for (ECHONETLiteBindingProvider provider : this.providers) {
+			String deviceId = provider.getDeviceId(itemName, command);
+			if (deviceId == null) {
+				continue;
+			}
+			String epc = provider.getEpc(itemName, command);
+			return deviceId + "/" + (epc != null ? epc.toUpperCase() : "");
+		}
+		return itemName;
+	}
 
-				DeviceInfo deviceInfo = deviceMap.get(deviceId);
-				if (deviceInfo == null) {
-					return;
-				}
+	/**
+	 * @return The EPCs of a comma separated list in hex, e.g. "b3,bb".
+	 */
+	private static byte[] parseEpcs(String value) {
+		String[] epcs = StringUtils.split(value, ", ");
+		byte[] codes = new byte[epcs.length];
+		for (int i = 0; i < epcs.length; i++) {
+			codes[i] = ECHONETLiteFrameEncoder.parseEpc(epcs[i]);
+		}
+		return codes;
+	}
+
+	/**
+	 * Writes the value of a command with SetC (or the ESV configured) and waits for the reply;
+	 * a SetI is not waited for. If the device reads values back, the command is sent as SetGet
+	 * and the values in its reply are published at once.
+	 *
+	 * @return Whether every device the item is bound to acknowledged the command.
+	 */
+	private boolean sendCommand(String itemName, Command command) {
+		boolean bound = false;
+		boolean acknowledged = true;
+		for (ECHONETLiteBindingProvider provider : this.providers) {
+			String deviceId = provider.getDeviceId(itemName, command);
+			if (deviceId == null) {
+				continue;
+			}
+			bound = true;
+			String epc = provider.getEpc(itemName, command);
+			String edt = provider.getEdt(itemName, command);
 
-				byte[] edtBytes;
+			DeviceInfo deviceInfo = deviceMap.get(deviceId);
+			if (deviceInfo == null || !isResolved(deviceId, deviceInfo)
+				|| !isAvailable(deviceId, deviceInfo)
+				|| !isSupported(itemName, deviceId, ECHONETLiteFrameEncoder.parseEpc(epc),
+					deviceInfo.getSetPropertyMap(), "Set")) {
+				acknowledged = false;
+				continue;
+			}
 
+			try {
+				// a SetI is not answered, so there is nothing to read back
+				byte[] readbackEpcs = deviceInfo.isSetI() ? null : deviceInfo.getReadbackEpcs();
+				ByteBuffer frame = udpConnector.allocateFrame();
+				if (readbackEpcs != null) {
+					ECHONETLiteFrameEncoder.putHeader(frame, deviceInfo, CommonUtils.nextTid(),
+						ESV_SETGET, 1);
+				} else {
+					putHeader(frame, deviceInfo, true);
+				}
 				if (edt != "") {
-					if(edt.length() < 2) {
-						edt = "0" + edt;
-					}
-					edtBytes = CommonUtils.hexStringToByteArray(edt);
+					ECHONETLiteFrameEncoder.putProperty(frame, ECHONETLiteFrameEncoder.parseEpc(epc), edt);
 				} else {
-					edtBytes = getData(command);
+					putData(frame, ECHONETLiteFrameEncoder.parseEpc(epc), command);
 				}
+				if (readbackEpcs != null) {
+					ECHONETLiteFrameEncoder.putReadProperties(frame, readbackEpcs);
+				}
+				ECHONETLiteFrameEncoder.finish(frame);
 
-				byte[] dataByte = buildData(deviceInfo, epc, edtBytes);
-
-				try {
-					ECHONETLiteConnectingThread connector =
-						new ECHONETLiteConnectingThread(itemName, deviceInfo.getPort(), dataByte,
-							deviceInfo.getHost(), itemValueMap.get(itemName));
+				ECHONETLiteConnectingThread connector;
+				if (readbackEpcs != null) {
+					Map<String, List<String>> itemNamesByEpc =
+						readbackItems(itemName, deviceId, epc, readbackEpcs);
+					Map<String, State> states = new HashMap<>();
+					for (List<String> itemNames : itemNamesByEpc.values()) {
+						for (String readbackItem : itemNames) {
+							states.put(readbackItem, itemValueMap.get(readbackItem));
+						}
+					}
+					connector = new ECHONETLiteConnectingThread(udpConnector, itemNamesByEpc,
+						deviceInfo, frame, states);
+				} else {
+					connector = new ECHONETLiteConnectingThread(udpConnector, itemName, epc,
+						deviceInfo, frame, itemValueMap.get(itemName));
+				}
 
-					// Starts the connector thread
-					connector.start();
-					connector.setEventPublisher(eventPublisher);
+				// Sends the message and waits for the reply
+				connector.setEventPublisher(eventPublisher);
+				connector.setStatistics(statistics.device(deviceId));
+				connector.setPriority(true);
+				connector.run();
+				// the values read back are what the next poll is compared with
+				itemValueMap.putAll(connector.getReceivedStates());
+				acknowledged &= connector.isAccepted();
+			} catch (Exception e) {
+				logger.error("error occured when sending ECHONETLite message");
+				acknowledged = false;
+			}
+		}
+		return bound && acknowledged;
+	}
 
-					// Wait for the thread to finish
-					connector.join();
-				} catch (Exception e) {
-					logger.error("error occured when sending ECHONETLite message");
+	/**
+	 * @return The items a SetGet publishes the values read back to, by EPC (upper case hex):
+	 *         the in-binding items of the device bound to these EPCs, and the commanded item
+	 *         if its own EPC is read back.
+	 */
+	private Map<String, List<String>> readbackItems(String itemName, String deviceId,
+		String epc, byte[] readbackEpcs) {
+		Map<String, List<String>> itemNamesByEpc = new HashMap<>();
+		for (byte readbackEpc : readbackEpcs) {
+			itemNamesByEpc.put(ECHONETLiteFrame.epcToHex(readbackEpc), new ArrayList<String>(1));
+		}
+		for (ECHONETLiteBindingProvider provider : this.providers) {
+			List<ECHONETLitePollPlan.Entry> entries = provider.getPollPlan().getDevices().get(deviceId);
+			if (entries == null) {
+				continue;
+			}
+			for (ECHONETLitePollPlan.Entry entry : entries) {
+				List<String> itemNames =
+					itemNamesByEpc.get(ECHONETLiteFrame.epcToHex(entry.getEpcCode()));
+				if (itemNames != null && !itemNames.contains(entry.getItemName())) {
+					itemNames.add(entry.getItemName());
 				}
 			}
 		}
+		List<String> itemNames =
+			itemNamesByEpc.get(ECHONETLiteFrame.epcToHex(ECHONETLiteFrameEncoder.parseEpc(epc)));
+		if (itemNames != null && !itemNames.contains(itemName)) {
+			itemNames.add(itemName);
+		}
+		return itemNamesByEpc;
 	}
 
 	/**
@@ -277,99 +825,226 @@ public class ECHONETLiteBinding extends AbstractActiveBinding<ECHONETLiteBinding
 	@Override
 	protected void internalReceiveUpdate(String itemName, State newState) {
 		logger.debug("internalReceiveUpdate ({}:{})", itemName, newState);
-		//if (itemValueMap.containsKey(itemName) && itemValueMap.get(itemName).equals(newState)) {
-		//	return;
-		//}
-
-		ECHONETLiteBindingProvider providerCmd = null;
+		for (ECHONETLiteBindingProvider provider : this.providers) {
+			String deviceId;
+			String epc;
+			if (provider.getOutputStateDeviceId(itemName) != null) {
+				deviceId = provider.getOutputStateDeviceId(itemName);
+				epc = provider.getOutputStateEpc(itemName);
+			} else if (provider.getInputStateDeviceId(itemName) != null) {
+				deviceId = provider.getInputStateDeviceId(itemName);
+				epc = provider.getInputStateEpc(itemName);
+			} else {
+				continue;
+			}
+			// in the same order as the commands to the property; sent to the devices of all
+			// providers binding the item, so it is queued once
+			commandDispatcher.submitUpdate(deviceId + "/" + (epc != null ? epc.toUpperCase() : ""),
+				itemName, newState);
+			return;
+		}
+	}
 
+	/**
+	 * Writes the state of an item bound with an out-binding for updates, or reads the value
+	 * of an item bound with an in-binding for updates, and waits for the reply.
+	 *
+	 * @return Whether every device the item is bound to acknowledged the update.
+	 */
+	private boolean sendUpdate(String itemName, State newState) {
+		boolean bound = false;
+		boolean acknowledged = true;
 		for (ECHONETLiteBindingProvider provider : this.providers) {
 			String deviceId;
-			byte[] edtBytes;
+			State value;
 			String epc;
 
 			if (provider.getOutputStateDeviceId(itemName) != null) {
 				deviceId = provider.getOutputStateDeviceId(itemName);
 				epc = provider.getOutputStateEpc(itemName);
-				edtBytes = getData(newState);				
+				value = newState;
 			} else if (provider.getInputStateDeviceId(itemName) != null){
 				deviceId = provider.getInputStateDeviceId(itemName);
 				epc = provider.getInputStateEpc(itemName);
-				edtBytes = CommonUtils.hexStringToByteArray("");
+				value = null;
 			} else {
-				return;
+				continue;
 			}
+			bound = true;
 
 			DeviceInfo deviceInfo = deviceMap.get(deviceId);
-			if (deviceInfo == null) {
-				return;
+			if (deviceInfo == null || !isResolved(deviceId, deviceInfo)
+				|| !isAvailable(deviceId, deviceInfo)
+				|| !isSupported(itemName, deviceId, ECHONETLiteFrameEncoder.parseEpc(epc), value != null
+					? deviceInfo.getSetPropertyMap() : deviceInfo.getGetPropertyMap(),
+					value != null ? "Set" : "Get")) {
+				acknowledged = false;
+				continue;
 			}
 
 			try {
-				byte[] dataByte = buildData(deviceInfo, epc, edtBytes);
+				ByteBuffer frame = udpConnector.allocateFrame();
+				putHeader(frame, deviceInfo, value != null);
+				if (value != null) {
+					putData(frame, ECHONETLiteFrameEncoder.parseEpc(epc), value);
+				} else {
+					ECHONETLiteFrameEncoder.putProperty(frame, ECHONETLiteFrameEncoder.parseEpc(epc));
+				}
+				ECHONETLiteFrameEncoder.finish(frame);
 				ECHONETLiteConnectingThread connector =
-					new ECHONETLiteConnectingThread(itemName, deviceInfo.getPort(), dataByte, deviceInfo.getHost(), itemValueMap.get(itemName));
-				// Starts the connector thread
-				connector.start();
+					new ECHONETLiteConnectingThread(udpConnector, itemName, epc, deviceInfo, frame, itemValueMap.get(itemName));
 				itemValueMap.put(itemName, newState);
-				connector.setEventPublisher(eventPublisher);
 
-				// Wait for the thread to finish
-				connector.join();
+				// Sends the message and waits for the reply
+				connector.setEventPublisher(eventPublisher);
+				connector.setStatistics(statistics.device(deviceId));
+				connector.setPriority(true);
+				connector.run();
+				acknowledged &= connector.isAccepted();
 			} catch (Exception e) {
 				logger.error("error occured when receiving internal command");
+				acknowledged = false;
 			}
 		}
+		return bound && acknowledged;
+	}
+
+	/**
+	 * Checks an EPC against a property map of the device object, warning once per item if
+	 * it is missing.
+	 *
+	 * @param propertyMap The map to check against; null if not known, which allows any EPC
+	 * @param access The kind of access the map lists, for the log
+	 * @return Whether the EPC may be used.
+	 */
+	private boolean isSupported(String itemName, String deviceId, byte epc,
+		PropertyMap propertyMap, String access) {
+		if (propertyMap == null || propertyMap.contains(epc)) {
+			return true;
+		}
+		if (rejectedItems.add(itemName)) {
+			logger.warn("EPC {} of item '{}' is not in the {} property map {} of ECHONETLite device "
+				+ "'{}', the item is not served until the map lists it",
+				ECHONETLiteFrame.epcToHex(epc), itemName, access, propertyMap, deviceId);
+		}
+		return false;
 	}
 
-	private byte[] buildData(DeviceInfo deviceInfo, String epc, byte[] edtBytes) {
-		// <EHD1><EHD2>
-		byte[] dataByte = deviceInfo.getEhd();
+	/**
+	 * Reads the announce, Set and Get property maps of a device object and caches them in
+	 * its {@link DeviceInfo}. Maps which could not be read are tried again later.
+	 */
+	private void loadPropertyMaps(String deviceId, DeviceInfo deviceInfo) {
+		ByteBuffer frame = udpConnector.allocateFrame();
+		ECHONETLiteFrameEncoder.putHeader(frame, deviceInfo, CommonUtils.nextTid(), ESV_GET, 3);
+		ECHONETLiteFrameEncoder.putProperty(frame, (byte) EPC_ANNOUNCE_PROPERTY_MAP);
+		ECHONETLiteFrameEncoder.putProperty(frame, (byte) EPC_SET_PROPERTY_MAP);
+		ECHONETLiteFrameEncoder.putProperty(frame, (byte) EPC_GET_PROPERTY_MAP);
+		ECHONETLiteFrameEncoder.finish(frame);
 
-		// <TID>
-		byte[] tid = CommonUtils.getNextTid();
-		dataByte = ArrayUtils.addAll(dataByte, tid);
+		final PropertyMap[] propertyMaps = new PropertyMap[3];
+		try {
+			udpConnector.sendDatagram(frame, deviceInfo.getAddress(),
+				deviceInfo.getInFlightWindow(), deviceInfo.getTokenBucket(),
+				new ECHONETLiteUDPConnector.ResponseHandler() {
+					@Override
+					public void responseReceived(ECHONETLiteFrame reply) {
+						if (reply.getEsv() != ESV_GET_RES && reply.getEsv() != ESV_GET_SNA) {
+							return;
+						}
+						while (reply.nextProperty()) {
+							int epc = reply.getEpc();
+							if (reply.getPdc() > 0 && epc >= EPC_ANNOUNCE_PROPERTY_MAP
+								&& epc <= EPC_GET_PROPERTY_MAP) {
+								propertyMaps[epc - EPC_ANNOUNCE_PROPERTY_MAP] =
+									PropertyMap.parse(reply.getEdt());
+							}
+						}
+					}
+				}).await();
+			ECHONETLiteConnectingThread.recordAnswer(deviceInfo);
+			deviceInfo.setPropertyMaps(propertyMaps[0], propertyMaps[1], propertyMaps[2]);
+			logger.debug("Property maps of ECHONETLite device '{}': announce {}, Set {}, Get {}",
+				deviceId, propertyMaps[0], propertyMaps[1], propertyMaps[2]);
+		} catch (TimeoutException | IOException | ExecutionException e) {
+			ECHONETLiteConnectingThread.recordFailure(deviceInfo);
+			deviceInfo.setPropertyMapsFailed(System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(PROPERTY_MAP_RETRY));
+			logger.debug("Could not read the property maps of ECHONETLite device '{}': {}",
+				deviceId, e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
 
-		// <SEOJ><DEOJ><ESV><OPC><EPC1>
-		dataByte = ArrayUtils.addAll(dataByte, deviceInfo.getEdataHead());
+	/**
+	 * Checks that the address of a device is known before a command is sent to it. If it has
+	 * not been resolved yet, the command is dropped and the resolver thread is asked to resolve
+	 * it, unless resolving failed a short time ago.
+	 */
+	private boolean isResolved(String deviceId, DeviceInfo deviceInfo) {
+		if (deviceInfo.getAddress() == null) {
+			if (deviceInfo.isAddressExpired(System.nanoTime())) {
+				addressResolver.resolveSoon();
+			}
+			logger.warn("Host '{}' of ECHONETLite device '{}' is not resolved, the command is dropped",
+				deviceInfo.getHost(), deviceId);
+			return false;
+		}
+		return true;
+	}
 
-		// <EPC>
-		dataByte = ArrayUtils.addAll(dataByte, CommonUtils.hexStringToByteArray(epc));
+	/**
+	 * Checks the health of a device before sending a command, which is dropped while the
+	 * device does not answer.
+	 */
+	private boolean isAvailable(String deviceId, DeviceInfo deviceInfo) {
+		if (!deviceInfo.getHealth().allowRequest(System.nanoTime())) {
+			logger.warn("ECHONETLite device '{}' does not answer, the command is dropped (circuit {})",
+				deviceId, deviceInfo.getHealth());
+			return false;
+		}
+		return true;
+	}
 
-		// <PDC1>
-		dataByte = ArrayUtils.add(dataByte, (byte) edtBytes.length);
-		// <EDT1>
-		dataByte = ArrayUtils.addAll(dataByte, edtBytes);
-		return dataByte;
+	/**
+	 * Writes the header of a request for one property, with the ESV configured for the device.
+	 *
+	 * @param withData Whether a value is written, which a Get instance sends with SetC, or
+	 *        with SetI if the device is configured for it
+	 */
+	private static void putHeader(ByteBuffer frame, DeviceInfo deviceInfo, boolean withData) {
+		int esv = deviceInfo.getEsv();
+		if (withData && deviceInfo.isSetI()) {
+			esv = ESV_SETI;
+		} else if (withData && esv == ESV_GET) {
+			// discovered devices are set up for Get, a value to write goes with SetC
+			esv = ESV_SETC;
+		}
+		ECHONETLiteFrameEncoder.putHeader(frame, deviceInfo, CommonUtils.nextTid(), esv, 1);
 	}
 
-	private byte[] getData(State newState) {
-		byte[] data = null;
+	private static void putData(ByteBuffer frame, byte epc, State newState) {
 		if (newState instanceof DecimalType) {
-			data = CommonUtils.long2byte(((DecimalType) newState).longValue());
+			ECHONETLiteFrameEncoder.putProperty(frame, epc, ((DecimalType) newState).longValue());
 		} else {
-			if (newState != null) {
-				data = CommonUtils.hexStringToByteArray(newState.toString());
-			}
-			if (data == null || data.length == 0) {
-				data = new byte[] {0};
-			}
+			putHexData(frame, epc, newState != null ? newState.toString() : null);
 		}
-		return data;
 	}
 
-	private byte[] getData(Command command) {
-		byte[] data = null;
+	private static void putData(ByteBuffer frame, byte epc, Command command) {
 		if (command instanceof DecimalType) {
-			data = CommonUtils.long2byte(((DecimalType) command).longValue());
+			ECHONETLiteFrameEncoder.putProperty(frame, epc, ((DecimalType) command).longValue());
 		} else {
-			if (command != null) {
-				data = CommonUtils.hexStringToByteArray(command.toString());
-			}
-			if (data == null || data.length == 0) {
-				data = new byte[] {0};
-			}
+			putHexData(frame, epc, command != null ? command.toString() : null);
+		}
+	}
+
+	private static void putHexData(ByteBuffer frame, byte epc, String hex) {
+		if (hex == null || hex.length() < 2) {
+			ECHONETLiteFrameEncoder.putProperty(frame, epc, 0L);
+		} else {
+			ECHONETLiteFrameEncoder.putProperty(frame, epc, hex.substring(0, hex.length() & ~1));
 		}
-		return data;
 	}
 }
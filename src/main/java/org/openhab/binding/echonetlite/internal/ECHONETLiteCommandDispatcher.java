@@ -0,0 +1,389 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.echonetlite.internal;
+
+import org.openhab.core.types.Command;
+import org.openhab.core.types.State;
+import org.openhab.core.types.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends the commands and state updates of items on its own threads, so that the event bus
+ * of openHAB does not wait for the devices.
+ * <p>
+ * Commands are queued per property (device and EPC) and sent one after the other, in the
+ * order they came; commands to different properties are sent at the same time, by up to
+ * as many threads as configured. At most {@link #MAX_QUEUED} commands wait in all queues,
+ * further ones are rejected.
+ * </p>
+ * <p>
+ * With a debounce window, a command is held back for that time and a later command to the
+ * same property replaces it and holds it back for the window again, so that only the last
+ * value of a burst, e.g. from a slider, is sent. A burst which goes on is sent after
+ * {@link #MAX_DEBOUNCE_WINDOWS} windows at the latest. While a command to the property is
+ * being sent, further commands wait for it to be answered, and again only the last of them
+ * is sent.
+ * </p>
+ *
+ * @author Kazuhiro Matsuda
+ * @since 1.8.0
+ */
+class ECHONETLiteCommandDispatcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(ECHONETLiteCommandDispatcher.class);
+
+	/** Default number of threads sending commands, i.e. properties written at the same time. */
+	static final int DEFAULT_THREADS = 4;
+
+	/** Number of commands which may wait to be sent, in all queues together. */
+	static final int MAX_QUEUED = 1000;
+
+	/** Number of debounce windows a command is held back for at most while later ones come. */
+	static final int MAX_DEBOUNCE_WINDOWS = 4;
+
+	/**
+	 * Sends a command or state update and waits for the device to answer.
+	 */
+	interface Sender {
+		/**
+		 * @return Whether the device acknowledged the command.
+		 */
+		boolean sendCommand(String itemName, Command command);
+
+		/**
+		 * @return Whether the device acknowledged the update.
+		 */
+		boolean sendUpdate(String itemName, State state);
+	}
+
+	/**
+	 * A command or state update waiting to be sent.
+	 */
+	private static final class Task {
+		final String itemName;
+		/** The {@link Command}, or the {@link State} of an update. */
+		final Type value;
+		final boolean update;
+		/** When the task was submitted, in {@link System#nanoTime()}. */
+		final long submittedAt = System.nanoTime();
+		final CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+		Task(String itemName, Type value, boolean update) {
+			this.itemName = itemName;
+			this.value = value;
+			this.update = update;
+		}
+	}
+
+	/**
+	 * The tasks waiting to be sent to one property; guarded by its own lock.
+	 */
+	private static final class Slot {
+		final ArrayDeque<Task> tasks = new ArrayDeque<>();
+		/** Whether a flush of the slot is scheduled. */
+		boolean scheduled = false;
+		/** When the scheduled flush was first scheduled, in {@link System#nanoTime()}. */
+		long heldSince;
+		/** When the scheduled flush sends, put off by later commands; in nanoTime. */
+		long flushAt;
+		/** Whether a task of the slot is being sent. */
+		boolean sending = false;
+	}
+
+	private final Sender sender;
+
+	/** Slots by (device, EPC); there are only as many as properties commands are sent to. */
+	private final ConcurrentMap<String, Slot> slots = new ConcurrentHashMap<>();
+
+	private final AtomicInteger queued = new AtomicInteger();
+
+	private final LongAdder coalesced = new LongAdder();
+
+	private final LongAdder rejected = new LongAdder();
+
+	/** Time from submitting a command to its reply, or until it was given up. */
+	private final ECHONETLiteLatencyHistogram commandLatency = new ECHONETLiteLatencyHistogram();
+
+	private volatile long debounce = 0;
+
+	private int threads = DEFAULT_THREADS;
+
+	private ScheduledThreadPoolExecutor executor = null;
+
+	/** Whether {@link #stop()} was called; no executor is created afterwards. Guarded by this. */
+	private boolean stopped = false;
+
+	ECHONETLiteCommandDispatcher(Sender sender) {
+		this.sender = sender;
+	}
+
+	/**
+	 * @param debounce Time in ms a command is held back for later ones to the same property;
+	 *        0 to send every command.
+	 */
+	void setDebounce(long debounce) {
+		if (debounce < 0) {
+			throw new IllegalArgumentException("debounce must not be negative");
+		}
+		this.debounce = debounce;
+	}
+
+	/**
+	 * @param threads Number of threads sending commands, at least 1.
+	 */
+	synchronized void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("at least one thread is needed to send commands");
+		}
+		this.threads = threads;
+		if (executor != null) {
+			executor.setCorePoolSize(threads);
+		}
+	}
+
+	/**
+	 * Queues a command, replacing a command to the same property which has not been sent yet
+	 * if a debounce window is set. Returns at once.
+	 *
+	 * @param key The property the command is written to, e.g. device id and EPC
+	 * @return Completed with true once the device acknowledged the command, with false if it
+	 *         did not, or if the command was replaced or rejected; completed exceptionally if
+	 *         the command could not be sent.
+	 */
+	CompletableFuture<Boolean> submitCommand(String key, String itemName, Command command) {
+		return submit(key, new Task(itemName, command, false));
+	}
+
+	/**
+	 * Queues the state update of an item for the property it is bound to, see
+	 * {@link #submitCommand}.
+	 */
+	CompletableFuture<Boolean> submitUpdate(String key, String itemName, State state) {
+		return submit(key, new Task(itemName, state, true));
+	}
+
+	/**
+	 * Drops the commands which have not been sent and stops the threads for good; commands
+	 * submitted afterwards, or which came in while one was being sent, are dropped as well.
+	 */
+	void stop() {
+		ScheduledThreadPoolExecutor stopped;
+		synchronized (this) {
+			this.stopped = true;
+			stopped = executor;
+			executor = null;
+		}
+		if (stopped != null) {
+			stopped.shutdownNow();
+		}
+		List<Task> dropped = new ArrayList<>();
+		for (Slot slot : slots.values()) {
+			synchronized (slot) {
+				dropped.addAll(slot.tasks);
+				slot.tasks.clear();
+				slot.scheduled = false;
+			}
+		}
+		for (Task task : dropped) {
+			queued.decrementAndGet();
+			task.done.complete(false);
+		}
+	}
+
+	/**
+	 * @return Number of commands which were replaced by a later one before they were sent.
+	 */
+	long getCoalescedCommands() {
+		return coalesced.sum();
+	}
+
+	/**
+	 * @return Number of commands which were dropped because too many were waiting.
+	 */
+	long getRejectedCommands() {
+		return rejected.sum();
+	}
+
+	/**
+	 * @return Number of commands waiting to be sent.
+	 */
+	int getQueuedCommands() {
+		return queued.get();
+	}
+
+	/**
+	 * @return The time from submitting a command to its reply, or until it was given up.
+	 */
+	ECHONETLiteLatencyHistogram getCommandLatency() {
+		return commandLatency;
+	}
+
+	void resetStatistics() {
+		coalesced.reset();
+		rejected.reset();
+		commandLatency.reset();
+	}
+
+	private CompletableFuture<Boolean> submit(String key, Task task) {
+		Slot slot = slots.get(key);
+		if (slot == null) {
+			slot = new Slot();
+			Slot existing = slots.putIfAbsent(key, slot);
+			if (existing != null) {
+				slot = existing;
+			}
+		}
+		Task replaced = null;
+		synchronized (slot) {
+			long debounce = this.debounce;
+			Task last = slot.tasks.peekLast();
+			if (debounce > 0 && last != null && last.update == task.update) {
+				replaced = slot.tasks.pollLast();
+			} else if (queued.incrementAndGet() > MAX_QUEUED) {
+				queued.decrementAndGet();
+				rejected.increment();
+				logger.warn("{} commands are waiting to be sent to ECHONETLite devices, "
+					+ "{} to '{}' is dropped", MAX_QUEUED, task.value, task.itemName);
+				task.done.complete(false);
+				return task.done;
+			}
+			slot.tasks.add(task);
+			if (!slot.scheduled && !slot.sending) {
+				schedule(slot, debounce);
+			} else if (slot.scheduled && debounce > 0) {
+				long window = TimeUnit.MILLISECONDS.toNanos(debounce);
+				slot.flushAt = Math.min(System.nanoTime() + window,
+					slot.heldSince + MAX_DEBOUNCE_WINDOWS * window);
+			}
+		}
+		if (replaced != null) {
+			coalesced.increment();
+			logger.debug("Command {} to '{}' replaces {} to '{}' which was not sent", task.value,
+				task.itemName, replaced.value, replaced.itemName);
+			replaced.done.complete(false);
+		}
+		return task.done;
+	}
+
+	/**
+	 * Schedules the flush of a slot; called with the lock of the slot held.
+	 */
+	private void schedule(Slot slot, long delay) {
+		slot.scheduled = true;
+		slot.heldSince = System.nanoTime();
+		slot.flushAt = slot.heldSince + TimeUnit.MILLISECONDS.toNanos(delay);
+		flushIn(slot, slot.flushAt - slot.heldSince);
+	}
+
+	/**
+	 * Runs the flush of a slot after the given time in nanoseconds; called with the lock of the
+	 * slot held. Once stopped, the tasks of the slot are dropped instead.
+	 */
+	private void flushIn(final Slot slot, long delay) {
+		ScheduledThreadPoolExecutor executor = executor();
+		if (executor != null) {
+			try {
+				executor.schedule(new Runnable() {
+					@Override
+					public void run() {
+						flush(slot);
+					}
+				}, delay, TimeUnit.NANOSECONDS);
+				return;
+			} catch (RejectedExecutionException e) {
+				// stopped meanwhile
+			}
+		}
+		slot.scheduled = false;
+		for (Task task : slot.tasks) {
+			queued.decrementAndGet();
+			task.done.complete(false);
+		}
+		slot.tasks.clear();
+	}
+
+	/**
+	 * Sends the first task of a slot, and schedules the next one, if any.
+	 */
+	private void flush(Slot slot) {
+		Task task;
+		synchronized (slot) {
+			long delay = slot.flushAt - System.nanoTime();
+			if (slot.scheduled && delay > 0) {
+				// put off by a later command
+				flushIn(slot, delay);
+				return;
+			}
+			slot.scheduled = false;
+			task = slot.tasks.poll();
+			if (task == null) {
+				return;
+			}
+			slot.sending = true;
+		}
+		queued.decrementAndGet();
+		try {
+			boolean acknowledged;
+			if (task.update) {
+				acknowledged = sender.sendUpdate(task.itemName, (State) task.value);
+			} else {
+				acknowledged = sender.sendCommand(task.itemName, (Command) task.value);
+			}
+			task.done.complete(acknowledged);
+		} catch (RuntimeException e) {
+			logger.error("error occured when sending ECHONETLite command", e);
+			task.done.completeExceptionally(e);
+		} finally {
+			if (!task.update) {
+				commandLatency.record(System.nanoTime() - task.submittedAt);
+			}
+			synchronized (slot) {
+				slot.sending = false;
+				if (!slot.tasks.isEmpty() && !slot.scheduled) {
+					// came in while this one was sent, the next goes out right after it
+					schedule(slot, 0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The executor, created on first use; null once stopped.
+	 */
+	private synchronized ScheduledThreadPoolExecutor executor() {
+		if (executor == null && !stopped) {
+			executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ECHONETLite commander-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.setRemoveOnCancelPolicy(true);
+		}
+		return executor;
+	}
+}
@@ -9,7 +9,9 @@
 
 package org.openhab.binding.echonetlite.internal;
 
-import org.apache.commons.lang3.ArrayUtils;
+import org.openhab.binding.echonetlite.data.DeviceHealth;
+import org.openhab.binding.echonetlite.data.DeviceInfo;
+import org.openhab.binding.echonetlite.data.PropertyValues;
 import org.openhab.core.binding.AbstractActiveBinding;
 import org.openhab.core.library.types.OnOffType;
 import org.openhab.core.library.types.StringType;
@@ -20,7 +22,14 @@ import org.openhab.core.events.EventPublisher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 
 /**
  * @author aklevy, Kazuhiro Matsuda
@@ -29,69 +38,145 @@ import java.net.InetAddress;
 
 
 /**
- * This thread sends command to ECHONETLite devices and checks whether the reply sent by the device
- * is a error message or not
+ * This runnable sends command to ECHONETLite devices and checks whether the reply sent by the device
+ * is a error message or not. It is run on the thread of the caller, e.g. a poller thread, while
+ * the reply is decoded in place on the receiver thread of the connector.
  *
  */
-public class ECHONETLiteConnectingThread extends Thread {
+public class ECHONETLiteConnectingThread
+	implements Runnable, ECHONETLiteUDPConnector.ResponseHandler {
 	//private static final Logger logger = LoggerFactory.getLogger(ECHONETLiteBinding.class);
 	private static final Logger logger = LoggerFactory.getLogger(ECHONETLiteConnectingThread.class);
 
+	private static final int ESV_SETC_RES = 0x71;
+	private static final int ESV_GET_RES = 0x72;
+	private static final int ESV_GET_SNA = 0x52;
+	private static final int ESV_SETI = 0x60;
+	private static final int ESV_SETI_SNA = 0x50;
+	private static final int ESV_SETGET_RES = 0x7E;
+	private static final int ESV_SETGET_SNA = 0x5E;
+
 	/**
-	 * The UDP connector
+	 * The UDP connector shared by the binding
 	 */
 	private ECHONETLiteUDPConnector udpConnector;
 
 	/**
-	 * Host to which the UDP message will be sent
+	 * Device to which the UDP message will be sent
 	 */
-	private String host;
+	private DeviceInfo deviceInfo;
 
-	private String itemName;
+	/**
+	 * Address to which the UDP message will be sent, as resolved ahead of time
+	 */
+	private InetSocketAddress address;
 
 	/**
-	 * Data to be sent
+	 * The message, once it has been sent
 	 */
-	private byte[] data;
+	private ECHONETLiteUDPConnector.PendingRequest pendingReply;
 
-	private org.openhab.core.types.State oldState;
-	//private State oldState;
+	/**
+	 * Whether the message is a SetI, which is only answered if it fails and not waited for
+	 */
+	private boolean unacknowledged = false;
 
-	private org.openhab.core.types.State state = null;
-	//private State state = null;
+	/**
+	 * Whether the message is a command of the user, sent before the polls waiting for the device
+	 */
+	private boolean priority = false;
+
+	/**
+	 * The items to update, by the EPC (upper case hex) they are bound to
+	 */
+	private Map<String, List<String>> itemNamesByEpc;
+
+	/**
+	 * Frame to be sent, taken from the connector and handed back to it when sending
+	 */
+	private ByteBuffer frame;
+
+	private Map<String, State> oldStates;
+
+	/**
+	 * The values received and whether they changed, handed over from the receiver thread as a
+	 * whole once the reply has been handled
+	 */
+	private volatile ReceivedValues receivedValues = ReceivedValues.NONE;
+
+	/**
+	 * Whether the device accepted the message, set on the receiver thread before the reply is
+	 * handed over; a SetI is taken as accepted once it is sent
+	 */
+	private volatile boolean accepted = false;
 
 	private EventPublisher eventPublisher = null;
 
+	/**
+	 * Statistics of the device, null if not recorded
+	 */
+	private ECHONETLiteStatistics.DeviceStatistics statistics = null;
+
+	/**
+	 * The EPCs of the request, as counted in the statistics
+	 */
+	private int[] requestEpcs;
+
 	public void setEventPublisher(EventPublisher pEventPublisher) {
 		this.eventPublisher = pEventPublisher;
 	}
 
+	void setStatistics(ECHONETLiteStatistics.DeviceStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	/**
+	 * @param priority Whether the message is a command of the user, which is sent before the
+	 *        polls waiting for the device
+	 */
+	void setPriority(boolean priority) {
+		this.priority = priority;
+	}
+
 	public void unsetEventPublisher(EventPublisher eventPublisher) {
 		this.eventPublisher = null;
 	}
 
-	public ECHONETLiteConnectingThread(String in, int port, byte[] dt, String hst, org.openhab.core.types.State state) {
-		udpConnector = new ECHONETLiteUDPConnector(port, port);
-		itemName = in;
-		data = dt;
-		host = hst;
-		oldState = state;
+	public ECHONETLiteConnectingThread(ECHONETLiteUDPConnector connector, String in, String epc,
+		DeviceInfo device, ByteBuffer dt, State state) {
+		this(connector, Collections.singletonMap(epc.toUpperCase(), Collections.singletonList(in)),
+			device, dt, Collections.singletonMap(in, state));
+	}
+
+	/**
+	 * Creates a request for several properties of the same device object, e.g. a Get with OPC > 1.
+	 *
+	 * @param itemNamesByEpc The items to update, by the EPC (upper case hex) they are bound to
+	 * @param states The current state of these items
+	 */
+	public ECHONETLiteConnectingThread(ECHONETLiteUDPConnector connector,
+		Map<String, List<String>> itemNamesByEpc, DeviceInfo device, ByteBuffer dt,
+		Map<String, State> states) {
+		udpConnector = connector;
+		this.itemNamesByEpc = itemNamesByEpc;
+		frame = dt;
+		deviceInfo = device;
+		address = device.getAddress();
+		oldStates = states;
 	}
 
 	/**
-	 * Sends commands to ECHONETLite devices And receives the reply from ECHONETLite device
+	 * Sends commands to ECHONETLite devices And receives the reply from ECHONETLite device; a
+	 * SetI returns as soon as it is sent, its error reply is handled when it arrives
 	 */
 	public void run() {
 		// Sends the command to devices
 		sendMessage();
 
-		// Receives the reply from devices
-		final char[] response = receiveMessage();
-		state = StringType.valueOf(String.valueOf(Integer.parseInt(String.valueOf(response), 16)));
-		if (oldState == null || !state.toString().equals(oldState.toString())) {
-				eventPublisher.postUpdate(itemName, state);
+		// Waits for the reply, which is split to the items as it is received
+		if (!unacknowledged) {
+			receiveMessage();
 		}
-		udpConnector.disconnect();
 	}
 
 
@@ -100,60 +185,230 @@ public class ECHONETLiteConnectingThread extends Thread {
 	 */
 	public void sendMessage() {
 		try {
-			udpConnector.sendDatagram(data, host);
+			if (statistics != null) {
+				requestEpcs = statistics.requestSent(new ECHONETLiteFrame().wrap(frame));
+			}
+			unacknowledged = (frame.get(frame.position() + 10) & 0xFF) == ESV_SETI;
+			if (unacknowledged) {
+				// before it is sent, so that an error reply is not overwritten
+				accepted = true;
+				pendingReply = udpConnector.sendUnacknowledged(frame, address,
+					deviceInfo.getTokenBucket(), this);
+			} else {
+				pendingReply = udpConnector.sendDatagram(frame, address,
+					deviceInfo.getInFlightWindow(), deviceInfo.getTokenBucket(), priority, this);
+			}
+			frame = null;
 
-			logger.debug("The following command " + data
-				+ " was successfully sent to ECHONETLite device with the following IP Address "
-				+ InetAddress.getByName(host).toString());
+			logger.debug("The command {} was successfully handed over for the ECHONETLite device "
+				+ "with the following IP Address {}", pendingReply, address);
 		} catch (Exception e) {
-			logger.error("could not send command to the ECHONETLite device");
+			accepted = false;
+			logger.error("could not send command to the ECHONETLite device " + address, e);
+			recordFailure(deviceInfo);
 		}
 	}
 
 
 	/**
-	 * Receives ECHONETLite reply message Checks if it is an error message
+	 * Waits for the ECHONETLite reply message to the message sent by {@link #sendMessage()}.
 	 */
-	char[] receiveMessage() {
+	void receiveMessage() {
 		logger.debug("checking the response from the ECHONETLite device");
-		char[] res = {'0', '0', '0', '0'};
+		if (pendingReply == null) {
+			return;
+		}
 
 		try {
-			String response = udpConnector.receiveDatagram(host);
-			if (response.equals("nothing")) {
-				logger.debug("Nothing was sent back from ECHONETLite devices");
+			pendingReply.await();
+			recordAnswer(deviceInfo);
+			if (statistics != null) {
+				statistics.responseReceived(requestEpcs, pendingReply.getRoundTripTime());
+			}
+		} catch (TimeoutException e) {
+			logger.debug("Nothing was sent back from ECHONETLite devices");
+			recordFailure(deviceInfo);
+			if (statistics != null) {
+				statistics.timedOut(requestEpcs);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			// e.g. the frame could not be sent once its slot or token was granted
+			Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+			logger.error("error when receiving message from ECHONETLite device " + address, cause);
+			recordFailure(deviceInfo);
+		}
+	}
+
+	/**
+	 * Records in the health of a device that it answered a request.
+	 */
+	static void recordAnswer(DeviceInfo device) {
+		if (device.getHealth().recordSuccess()) {
+			logger.info("ECHONETLite device {} answers again, its items are polled again",
+				device.getAddress());
+		}
+	}
+
+	/**
+	 * Records in the health of a device that a request was not answered.
+	 */
+	static void recordFailure(DeviceInfo device) {
+		DeviceHealth health = device.getHealth();
+		if (health.recordFailure(System.nanoTime())) {
+			logger.warn("ECHONETLite device {} did not answer {} request(s) in a row, "
+				+ "its items are skipped for {} ms", device.getAddress(),
+				health.getConsecutiveFailures(), health.getBackoff());
+		}
+	}
+
+	/**
+	 * Stores the EDT of the current property of a frame as the last value of the device
+	 * object, unless it is the same bytes as before.
+	 *
+	 * @return Whether the EDT differs from the one last received.
+	 */
+	static boolean edtChanged(DeviceInfo device, ECHONETLiteFrame frame) {
+		PropertyValues values = device.getPropertyValues();
+		int epc = frame.getEpc();
+		while (true) {
+			byte[] last = values.get(epc);
+			if (last != null && frame.edtEquals(last)) {
+				return false;
+			}
+			if (values.compareAndSet(epc, last, frame.getEdt())) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return Whether the device answered the message with anything but an error, or for a SetI
+	 *         whether it was sent. Valid once {@link #run()} has returned.
+	 */
+	public boolean isAccepted() {
+		return accepted;
+	}
+
+	/**
+	 * @return The values published, by item name. Complete once {@link #run()} has returned.
+	 */
+	public Map<String, State> getReceivedStates() {
+		return receivedValues.states;
+	}
+
+	/**
+	 * @return Whether the value of an item changed, by item name; items no value was received
+	 *         for are left out. Complete once {@link #run()} has returned.
+	 */
+	public Map<String, Boolean> getChangedItems() {
+		return receivedValues.changedItems;
+	}
+
+	/**
+	 * Checks if the reply is an error message and updates the items bound to the properties
+	 * it carries. Called on the receiver thread of the connector.
+	 */
+	@Override
+	public void responseReceived(ECHONETLiteFrame reply) {
+		if (statistics != null) {
+			statistics.replyReceived(reply);
+		}
+		int esv = reply.getEsv();
+		accepted = (esv & 0xF0) != 0x50;
+		if (esv == ESV_SETC_RES) {
+			logger.info("SetC was successfully executed by the ECHONETLite device");
+			return;
+		}
+		if (esv == ESV_GET_RES) {
+			logger.info("Get was successfully executed by the ECHONETLite device");
+		} else if (esv == ESV_GET_SNA) {
+			logger.info("Get was partially executed by the ECHONETLite device (ESV=52)");
+		} else if (esv == ESV_SETGET_RES || esv == ESV_SETGET_SNA) {
+			if (esv == ESV_SETGET_SNA) {
+				if (statistics != null) {
+					statistics.errorReceived(requestEpcs);
+				}
+				logger.info("SetGet was partially executed by the ECHONETLite device (ESV=5E)");
 			} else {
-				char[] code = new char[response.length()];
-				response.getChars(0, response.length(), code, 0);
-
-				if (response.length() > 21) {
-					if (response.length() > 22 && code[20] == '5') {
-						logger
-							.info("An error message (ESV="
-								+ code[20]
-								+ code[21]
-								+ ") was sent back by the ECHONETLite device, the device's state was not updated: please check the message sent previously");
-					} else if (code[20] == '7') {
-						if(code[21] == '1') {
-							logger.info("SetC was successfully executed by the ECHONETLite device");
-							res = ArrayUtils.subarray(code, 26, 28);
-						} else if(code[21] == '2') {
-							logger.info("Get was successfully executed by the ECHONETLite device");
-							int resSize = Integer.parseInt(String.valueOf(ArrayUtils.subarray(code,26,28)), 16);
-							int resFrom = 28;
-							int resTo = 28 + resSize * 2;
-							res = ArrayUtils.subarray(code, resFrom, resTo);
-						} else {
-							logger.info("receive unknown response");
-						}
+				logger.info("SetGet was successfully executed by the ECHONETLite device");
+			}
+			// the values read back follow the ones written
+			if (!reply.nextSection()) {
+				logger.debug("SetGet reply from {} carries no values read back", address);
+				return;
+			}
+		} else if (esv == ESV_SETI_SNA && unacknowledged) {
+			// nobody waits for the SetI, the device answered anyway
+			recordAnswer(deviceInfo);
+			if (statistics != null) {
+				statistics.errorReceived(requestEpcs);
+			}
+			logger.warn("SetI of {} was rejected by the ECHONETLite device {} (ESV=50), "
+				+ "the value was not written", itemNamesByEpc.values(), address);
+			return;
+		} else if ((esv & 0xF0) == 0x50) {
+			if (statistics != null) {
+				statistics.errorReceived(requestEpcs);
+			}
+			logger.info("An error message (ESV={}) was sent back by the ECHONETLite device, "
+				+ "the device's state was not updated: please check the message sent previously",
+				Integer.toHexString(esv).toUpperCase());
+			return;
+		} else {
+			logger.info("receive unknown response");
+			return;
+		}
+
+		// filled here and only handed over when complete, a caller which gave up waiting may
+		// be reading the values at the same time
+		Map<String, State> receivedStates = new HashMap<>();
+		Map<String, Boolean> changedItems = new HashMap<>();
+		while (reply.nextProperty()) {
+			List<String> itemNames = itemNamesByEpc.get(reply.getEpcHex());
+			if (itemNames == null) {
+				logger.debug("EPC {} was not requested from {}", reply.getEpcHex(), address);
+				continue;
+			}
+			if (reply.getPdc() == 0) {
+				logger.info("EPC {} could not be read from the ECHONETLite device", reply.getEpcHex());
+				continue;
+			}
+			// the state is only built if it is published
+			boolean edtChanged = edtChanged(deviceInfo, reply);
+			State state = null;
+			for (String itemName : itemNames) {
+				boolean changed = edtChanged || oldStates.get(itemName) == null;
+				if (changed) {
+					if (state == null) {
+						state = StringType.valueOf(reply.getEdtAsDecimal());
 					}
+					eventPublisher.postUpdate(itemName, state);
+					receivedStates.put(itemName, state);
 				}
+				changedItems.put(itemName, changed);
 			}
-			return res;
-		} catch (Exception e) {
-			logger.error(e.toString());
-			logger.error("error when receiving message from ECHONETLite devices");
-			return res;
+		}
+		receivedValues = new ReceivedValues(receivedStates, changedItems);
+	}
+
+	/**
+	 * The values received with a reply, not changed once handed over.
+	 */
+	private static final class ReceivedValues {
+		static final ReceivedValues NONE = new ReceivedValues(
+			Collections.<String, State> emptyMap(), Collections.<String, Boolean> emptyMap());
+
+		/** The values published, by item name */
+		final Map<String, State> states;
+
+		/** Whether the value of an item changed, for the items a value was received for */
+		final Map<String, Boolean> changedItems;
+
+		ReceivedValues(Map<String, State> states, Map<String, Boolean> changedItems) {
+			this.states = states;
+			this.changedItems = changedItems;
 		}
 	}
 }
@@ -0,0 +1,276 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.echonetlite.internal;
+
+import org.openhab.binding.echonetlite.data.DeviceInfo;
+import org.openhab.binding.echonetlite.util.CommonUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Discovers the device objects of all ECHONET Lite nodes on the network.
+ * <p>
+ * A single Get for the self-node instance list (EPC D6) of the node profile (EOJ 0EF001)
+ * is sent to the multicast group, and every node answering within the collection window
+ * contributes its device objects to a table keyed by host and EOJ. The round is repeated
+ * periodically and the instance lists the nodes announce (EPC D5) are merged as they come
+ * in, so only devices which were not known before are reported to the listener.
+ * </p>
+ * <p>
+ * A discovered device object gets the instance name
+ * <code>&lt;address with underscores&gt;_&lt;EOJ&gt;</code>, e.g.
+ * <code>10_10_0_200_013001</code>, which can be used in item bindings like a configured one.
+ * </p>
+ *
+ * @author Kazuhiro Matsuda
+ * @since 1.8.0
+ */
+class ECHONETLiteDiscovery implements ECHONETLiteUDPConnector.ReplyListener {
+
+	private static final Logger logger = LoggerFactory.getLogger(ECHONETLiteDiscovery.class);
+
+	/** Node profile object, instance 1. */
+	static final int NODE_PROFILE_EOJ = 0x0EF001;
+
+	/** Controller class, the object the binding sends from. */
+	static final int CONTROLLER_EOJ = 0x05FF01;
+
+	/** Instance list notification, announced by a node when it starts up. */
+	static final int EPC_INSTANCE_LIST_NOTIFICATION = 0xD5;
+
+	/** Self-node instance list S. */
+	static final int EPC_SELF_NODE_INSTANCE_LIST = 0xD6;
+
+	/** Default time in milliseconds to collect the replies of a discovery round. */
+	static final long DEFAULT_WINDOW = 3000;
+
+	/** Default time in milliseconds between two discovery rounds. */
+	static final long DEFAULT_INTERVAL = TimeUnit.MINUTES.toMillis(10);
+
+	private static final int ESV_GET = 0x62;
+	private static final int ESV_GET_RES = 0x72;
+
+	/**
+	 * Receives the device objects found by a discovery round or announcement.
+	 */
+	interface DiscoveryListener {
+		/**
+		 * @param devices The device objects which were not known before, by instance name
+		 */
+		void devicesDiscovered(Map<String, DeviceInfo> devices);
+	}
+
+	private final ECHONETLiteUDPConnector udpConnector;
+
+	private final DiscoveryListener listener;
+
+	/** All device objects found so far, by host and EOJ. */
+	private final ConcurrentMap<String, DeviceInfo> devices = new ConcurrentHashMap<>();
+
+	/** Device objects found by the running round and not reported yet. */
+	private Map<String, DeviceInfo> found = null;
+
+	private long window = DEFAULT_WINDOW;
+
+	private ScheduledExecutorService scheduler = null;
+
+	private ScheduledFuture<?> rounds = null;
+
+	ECHONETLiteDiscovery(ECHONETLiteUDPConnector udpConnector, DiscoveryListener listener) {
+		this.udpConnector = udpConnector;
+		this.listener = listener;
+	}
+
+	void setWindow(long window) {
+		this.window = window;
+	}
+
+	/**
+	 * Starts discovering every <code>interval</code> ms, unless discovery runs already.
+	 */
+	synchronized void start(long interval) {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ECHONETLite discovery");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		rounds = scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				discover();
+			}
+		}, 0, interval, TimeUnit.MILLISECONDS);
+	}
+
+	synchronized void stop() {
+		if (scheduler == null) {
+			return;
+		}
+		rounds.cancel(true);
+		scheduler.shutdownNow();
+		scheduler = null;
+		rounds = null;
+	}
+
+	/**
+	 * @return All device objects found so far, by instance name.
+	 */
+	Map<String, DeviceInfo> getDevices() {
+		return Collections.unmodifiableMap(devices);
+	}
+
+	/**
+	 * Runs one discovery round: a multicast Get of the self-node instance list of all nodes.
+	 */
+	void discover() {
+		byte[] tid = CommonUtils.getNextTid();
+		byte[] request = {
+			0x10, (byte) 0x81, tid[0], tid[1],
+			(byte) (CONTROLLER_EOJ >> 16), (byte) (CONTROLLER_EOJ >> 8), (byte) CONTROLLER_EOJ,
+			(byte) (NODE_PROFILE_EOJ >> 16), (byte) (NODE_PROFILE_EOJ >> 8), (byte) NODE_PROFILE_EOJ,
+			(byte) ESV_GET, 1, (byte) EPC_SELF_NODE_INSTANCE_LIST, 0 };
+
+		synchronized (this) {
+			found = new HashMap<>();
+		}
+		try {
+			logger.debug("discovering ECHONETLite nodes for {} ms", window);
+			udpConnector.sendMulticast(request, this, window);
+		} catch (IOException e) {
+			logger.warn("ECHONETLite discovery failed: {}", e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		Map<String, DeviceInfo> newDevices;
+		synchronized (this) {
+			newDevices = found;
+			found = null;
+		}
+		logger.debug("ECHONETLite discovery found {} new device object(s), {} known in total",
+			newDevices.size(), devices.size());
+		if (!newDevices.isEmpty()) {
+			listener.devicesDiscovered(newDevices);
+		}
+	}
+
+	/**
+	 * Collects the self-node instance lists sent back during a discovery round.
+	 */
+	@Override
+	public void replyReceived(InetSocketAddress source, ECHONETLiteFrame frame) {
+		if (frame.getEsv() != ESV_GET_RES
+			|| (frame.getSeoj() & 0xFFFF00) != (NODE_PROFILE_EOJ & 0xFFFF00)) {
+			return;
+		}
+		while (frame.nextProperty()) {
+			if (frame.getEpc() == EPC_SELF_NODE_INSTANCE_LIST) {
+				Map<String, DeviceInfo> newDevices = addInstances(source.getAddress(), frame.getEdt());
+				synchronized (this) {
+					if (found != null) {
+						found.putAll(newDevices);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merges the instance list a node announced (EPC D5) and reports its new device objects.
+	 * Called on the receiver thread of the connector, so the list is handed to the discovery
+	 * thread, which reports the new device objects as it does those of a discovery round;
+	 * dropped while discovery is stopped.
+	 *
+	 * @param edt The EDT of the announcement, not changed afterwards
+	 */
+	void instanceListAnnounced(final InetAddress source, final byte[] edt) {
+		ScheduledExecutorService scheduler;
+		synchronized (this) {
+			scheduler = this.scheduler;
+		}
+		if (scheduler == null) {
+			return;
+		}
+		try {
+			scheduler.execute(new Runnable() {
+				@Override
+				public void run() {
+					Map<String, DeviceInfo> newDevices = addInstances(source, edt);
+					if (!newDevices.isEmpty()) {
+						listener.devicesDiscovered(newDevices);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// stopped meanwhile
+		}
+	}
+
+	/**
+	 * Adds the device objects of an instance list (count followed by the EOJs) to the table.
+	 *
+	 * @return The device objects which were not known before, by instance name
+	 */
+	private Map<String, DeviceInfo> addInstances(InetAddress host, byte[] edt) {
+		Map<String, DeviceInfo> newDevices = new HashMap<>();
+		if (edt.length < 1) {
+			return newDevices;
+		}
+		int count = edt[0] & 0xFF;
+		for (int i = 0; i < count && 1 + 3 * (i + 1) <= edt.length; i++) {
+			int eojOffset = 1 + 3 * i;
+			byte[] eoj = { edt[eojOffset], edt[eojOffset + 1], edt[eojOffset + 2] };
+			String deviceId = getDeviceId(host, eoj);
+			if (devices.containsKey(deviceId)) {
+				continue;
+			}
+
+			DeviceInfo deviceInfo = new DeviceInfo();
+			deviceInfo.setHost(host.getHostAddress());
+			deviceInfo.setEdataHead(new byte[] {
+				(byte) (CONTROLLER_EOJ >> 16), (byte) (CONTROLLER_EOJ >> 8), (byte) CONTROLLER_EOJ,
+				eoj[0], eoj[1], eoj[2], (byte) ESV_GET, 1 });
+			if (devices.putIfAbsent(deviceId, deviceInfo) == null) {
+				logger.info("Discovered ECHONETLite device object {} on {} as instance '{}'",
+					ECHONETLiteUDPConnector.bytesToHex(eoj, 3), host.getHostAddress(), deviceId);
+				newDevices.put(deviceId, deviceInfo);
+			}
+		}
+		return newDevices;
+	}
+
+	/**
+	 * @return The instance name of a discovered device object.
+	 */
+	static String getDeviceId(InetAddress host, byte[] eoj) {
+		return host.getHostAddress().replace('.', '_').replace(':', '_') + "_"
+			+ ECHONETLiteUDPConnector.bytesToHex(eoj, 3).toLowerCase();
+	}
+}
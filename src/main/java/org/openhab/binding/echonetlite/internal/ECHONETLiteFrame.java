@@ -0,0 +1,261 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.echonetlite.internal;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * A read-only view of a received ECHONET Lite frame (format 1).
+ * <p>
+ * The view reads the buffer it wraps in place and is reused for every frame, so decoding
+ * does not allocate. The properties are walked with a cursor:
+ * </p>
+ *
+ * <pre>
+ * while (frame.nextProperty()) {
+ * 	frame.getEpc(); frame.getPdc(); frame.getEdtAsLong();
+ * }
+ * </pre>
+ * <p>
+ * A view handed to a listener is only valid during the call, as the buffer is filled with
+ * the next frame afterwards. Values which have to be kept must be copied, e.g. with
+ * {@link #getEdt()}.
+ * </p>
+ * <p>
+ * The properties of a SetGet frame come in two lists, the written ones and the read ones,
+ * each with its own OPC; {@link #nextSection()} moves the cursor from the first to the
+ * second.
+ * </p>
+ *
+ * @author Kazuhiro Matsuda
+ * @since 1.8.0
+ */
+final class ECHONETLiteFrame {
+
+	/** Size of EHD, TID, SEOJ, DEOJ, ESV and OPC, i.e. the shortest valid frame. */
+	static final int HEADER_SIZE = 12;
+
+	private static final String[] EPC_HEX = new String[256];
+
+	static {
+		for (int i = 0; i < EPC_HEX.length; i++) {
+			EPC_HEX[i] = String.format("%02X", i);
+		}
+	}
+
+	private ByteBuffer buffer;
+	private int start;
+	private int end;
+
+	/** OPC of the list of properties the cursor is in, -1 for the one of the header. */
+	private int sectionOpc;
+	/** Number of properties the cursor has passed, including the current one. */
+	private int propertyCount;
+	/** Offset of the EPC of the current property. */
+	private int propertyOffset;
+	/** Offset of the EPC of the next property. */
+	private int nextPropertyOffset;
+
+	/**
+	 * Views the frame between position and limit of the buffer. Neither is changed.
+	 *
+	 * @return This view
+	 */
+	ECHONETLiteFrame wrap(ByteBuffer buffer) {
+		this.buffer = buffer;
+		this.start = buffer.position();
+		this.end = buffer.limit();
+		rewind();
+		return this;
+	}
+
+	/**
+	 * @return Whether this is a complete header of an ECHONET Lite frame in format 1.
+	 */
+	boolean isValid() {
+		return length() >= HEADER_SIZE && buffer.get(start) == 0x10
+			&& buffer.get(start + 1) == (byte) 0x81;
+	}
+
+	int length() {
+		return end - start;
+	}
+
+	int getTid() {
+		return buffer.getShort(start + 2) & 0xFFFF;
+	}
+
+	int getSeoj() {
+		return eoj(start + 4);
+	}
+
+	int getDeoj() {
+		return eoj(start + 7);
+	}
+
+	int getEsv() {
+		return buffer.get(start + 10) & 0xFF;
+	}
+
+	int getOpc() {
+		return buffer.get(start + 11) & 0xFF;
+	}
+
+	/**
+	 * Moves the cursor back in front of the first property.
+	 */
+	void rewind() {
+		sectionOpc = -1;
+		propertyCount = 0;
+		propertyOffset = -1;
+		nextPropertyOffset = start + HEADER_SIZE;
+	}
+
+	/**
+	 * Moves the cursor to the next property.
+	 *
+	 * @return false if all properties of the OPC have been passed or the frame is truncated.
+	 */
+	boolean nextProperty() {
+		if (propertyCount >= (sectionOpc < 0 ? getOpc() : sectionOpc)
+			|| nextPropertyOffset + 2 > end) {
+			return false;
+		}
+		int pdc = buffer.get(nextPropertyOffset + 1) & 0xFF;
+		if (nextPropertyOffset + 2 + pdc > end) {
+			return false;
+		}
+		propertyCount++;
+		propertyOffset = nextPropertyOffset;
+		nextPropertyOffset += 2 + pdc;
+		return true;
+	}
+
+	/**
+	 * Moves the cursor in front of the properties read by a SetGet (OPCGet), passing the
+	 * written ones which are left.
+	 *
+	 * @return false if this is not a SetGet frame, the cursor is in the second list already or
+	 *         the frame is truncated.
+	 */
+	boolean nextSection() {
+		if ((getEsv() & 0x0F) != 0x0E || sectionOpc >= 0) {
+			return false;
+		}
+		while (nextProperty()) {
+			// skipping the written properties
+		}
+		if (propertyCount < getOpc() || nextPropertyOffset + 1 > end) {
+			return false;
+		}
+		sectionOpc = buffer.get(nextPropertyOffset) & 0xFF;
+		nextPropertyOffset++;
+		propertyCount = 0;
+		propertyOffset = -1;
+		return true;
+	}
+
+	int getEpc() {
+		return buffer.get(propertyOffset) & 0xFF;
+	}
+
+	int getPdc() {
+		return buffer.get(propertyOffset + 1) & 0xFF;
+	}
+
+	/**
+	 * @return The byte at the given index of the EDT of the current property.
+	 */
+	int getEdt(int index) {
+		return buffer.get(propertyOffset + 2 + index) & 0xFF;
+	}
+
+	/**
+	 * @return The EDT of the current property as unsigned big endian number; only the last
+	 *         8 bytes are taken into account.
+	 */
+	long getEdtAsLong() {
+		long value = 0;
+		for (int i = Math.max(0, getPdc() - 8); i < getPdc(); i++) {
+			value = value << 8 | getEdt(i);
+		}
+		return value;
+	}
+
+	/**
+	 * @return The EDT of the current property as unsigned decimal number, e.g. "48" for 0x30.
+	 */
+	String getEdtAsDecimal() {
+		if (getPdc() < 8) {
+			return Long.toString(getEdtAsLong());
+		} else if (getPdc() == 8) {
+			return Long.toUnsignedString(getEdtAsLong());
+		}
+		return new BigInteger(1, getEdt()).toString();
+	}
+
+	/**
+	 * @return A copy of the EDT of the current property.
+	 */
+	byte[] getEdt() {
+		byte[] edt = new byte[getPdc()];
+		for (int i = 0; i < edt.length; i++) {
+			edt[i] = (byte) getEdt(i);
+		}
+		return edt;
+	}
+
+	/**
+	 * @return Whether the EDT of the current property is the same as the given bytes; compared
+	 *         in place, without copying the EDT.
+	 */
+	boolean edtEquals(byte[] edt) {
+		if (edt.length != getPdc()) {
+			return false;
+		}
+		int offset = propertyOffset + 2;
+		for (int i = 0; i < edt.length; i++) {
+			if (buffer.get(offset + i) != edt[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The EPC of the current property in upper case hex, e.g. "80".
+	 */
+	String getEpcHex() {
+		return epcToHex(getEpc());
+	}
+
+	/**
+	 * @return The EPC in upper case hex, e.g. "80"; the strings are shared.
+	 */
+	static String epcToHex(int epc) {
+		return EPC_HEX[epc & 0xFF];
+	}
+
+	@Override
+	public String toString() {
+		char[] hex = new char[length() * 2];
+		for (int i = 0; i < length(); i++) {
+			String digits = EPC_HEX[buffer.get(start + i) & 0xFF];
+			hex[i * 2] = digits.charAt(0);
+			hex[i * 2 + 1] = digits.charAt(1);
+		}
+		return new String(hex);
+	}
+
+	private int eoj(int offset) {
+		return (buffer.get(offset) & 0xFF) << 16 | (buffer.get(offset + 1) & 0xFF) << 8
+			| (buffer.get(offset + 2) & 0xFF);
+	}
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.echonetlite.internal;
+
+import org.openhab.binding.echonetlite.data.DeviceInfo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes ECHONET Lite frames straight into a {@link ByteBuffer}.
+ * <p>
+ * A frame is started with {@link #putHeader} and followed by one <code>putProperty</code>
+ * call per property announced in the OPC; {@link #finish} makes it ready to be sent. None
+ * of these methods allocate, so a frame taken from the frame pool of the
+ * {@link ECHONETLiteUDPConnector} is encoded without producing garbage.
+ * </p>
+ *
+ * @author Kazuhiro Matsuda
+ * @since 1.8.0
+ */
+final class ECHONETLiteFrameEncoder {
+
+	private ECHONETLiteFrameEncoder() {
+	}
+
+	/**
+	 * Clears the buffer and writes EHD, TID, SEOJ, DEOJ, ESV and OPC.
+	 *
+	 * @param device The device object the frame is sent to
+	 * @param tid The transaction id, only the lower 16 bits are used
+	 * @param esv The service, e.g. 0x62 for Get
+	 * @param opc The number of properties which follow
+	 */
+	static void putHeader(ByteBuffer frame, DeviceInfo device, int tid, int esv, int opc) {
+		byte[] ehd = device.getEhd();
+		frame.clear();
+		frame.put(ehd[0]).put(ehd[1]);
+		frame.putShort((short) tid);
+		putEoj(frame, device.getSeoj());
+		putEoj(frame, device.getDeoj());
+		frame.put((byte) esv).put((byte) opc);
+	}
+
+	/**
+	 * Writes a property without data (PDC 0), as requested by Get.
+	 */
+	static void putProperty(ByteBuffer frame, byte epc) {
+		frame.put(epc).put((byte) 0);
+	}
+
+	/**
+	 * Writes a property with the given data.
+	 */
+	static void putProperty(ByteBuffer frame, byte epc, byte[] edt) {
+		frame.put(epc).put((byte) edt.length).put(edt);
+	}
+
+	/**
+	 * Writes a property with a number as data, big endian in as few bytes as needed (at least
+	 * one).
+	 */
+	static void putProperty(ByteBuffer frame, byte epc, long value) {
+		int length = Math.max(1, (Long.SIZE - Long.numberOfLeadingZeros(value) + 7) / 8);
+		frame.put(epc).put((byte) length);
+		for (int shift = (length - 1) * 8; shift >= 0; shift -= 8) {
+			frame.put((byte) (value >>> shift));
+		}
+	}
+
+	/**
+	 * Writes a property with data given in hex, e.g. "30". An odd number of digits is padded
+	 * with a leading zero, no digits give a property without data.
+	 */
+	static void putProperty(ByteBuffer frame, byte epc, CharSequence hex) {
+		int digits = hex.length();
+		int length = (digits + 1) / 2;
+		frame.put(epc).put((byte) length);
+		int i = 0;
+		if (digits % 2 == 1) {
+			frame.put((byte) Character.digit(hex.charAt(0), 16));
+			i = 1;
+		}
+		for (; i < digits; i += 2) {
+			frame.put((byte) (Character.digit(hex.charAt(i), 16) << 4
+				| Character.digit(hex.charAt(i + 1), 16)));
+		}
+	}
+
+	/**
+	 * Writes the properties a SetGet reads, with their OPCGet, after the ones it writes.
+	 */
+	static void putReadProperties(ByteBuffer frame, byte[] epcs) {
+		frame.put((byte) epcs.length);
+		for (byte epc : epcs) {
+			putProperty(frame, epc);
+		}
+	}
+
+	/**
+	 * Flips the buffer, so that it holds exactly the frame written.
+	 */
+	static void finish(ByteBuffer frame) {
+		frame.flip();
+	}
+
+	/**
+	 * Encodes a Get of several properties of one device object, with the ESV configured for
+	 * the device.
+	 */
+	static void encodeGet(ByteBuffer frame, DeviceInfo device, int tid, byte[] epcs) {
+		putHeader(frame, device, tid, device.getEsv(), epcs.length);
+		for (byte epc : epcs) {
+			putProperty(frame, epc);
+		}
+		finish(frame);
+	}
+
+	/**
+	 * @return The EPC given in hex, e.g. "80".
+	 * @throws IllegalArgumentException If it is not a one byte hex number.
+	 */
+	static byte parseEpc(String epc) {
+		int value = Integer.parseInt(epc, 16);
+		if (value < 0 || value > 0xFF) {
+			throw new IllegalArgumentException("EPC must be one byte: " + epc);
+		}
+		return (byte) value;
+	}
+
+	private static void putEoj(ByteBuffer frame, int eoj) {
+		frame.put((byte) (eoj >> 16)).put((byte) (eoj >> 8)).put((byte) eoj);
+	}
+}
@@ -29,7 +29,10 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -78,6 +81,15 @@ public class ECHONETLiteGenericBindingProvider extends AbstractGenericBindingPro
 
 	private long refreshInterval = 60000;
 
+	/** The in-binding items which can be polled, kept up to date as bindings are processed. */
+	private final Map<String, ECHONETLitePollPlan.Entry> pollEntries = new LinkedHashMap<>();
+
+	/**
+	 * The plan of {@link #pollEntries}, null while it has to be built again. It is only built
+	 * when it is read, so that loading an item file builds it once, not once per item.
+	 */
+	private volatile ECHONETLitePollPlan pollPlan = ECHONETLitePollPlan.EMPTY;
+
 	/** {@link pattern} which mathes a binding configuration part */
 	private static final Pattern BASE_CONFIG_PATTERN = Pattern
 		.compile("([<|>|\\*]\\[.*?\\])*");
@@ -89,6 +101,10 @@ public class ECHONETLiteGenericBindingProvider extends AbstractGenericBindingPro
 	private static final Pattern IN_BINDING_PATTERN_REFRESH = Pattern
 		.compile("<\\[([0-9_a-zA-Z]+):([0-9_a-zA-Z]+):([0-9_a-zA-Z]+):([0-9]+)\\]");
 
+	/** {@link Pattern} which matches an In-Binding with an adaptive refresh interval (min-max) */
+	private static final Pattern IN_BINDING_PATTERN_ADAPTIVE = Pattern
+		.compile("<\\[([0-9_a-zA-Z]+):([0-9_a-zA-Z]+):([0-9]+)-([0-9]+)\\]");
+
 	private static final Pattern IN_BINDING_PATTERN_WO_COMMAND = Pattern
 		.compile("<\\[([0-9_a-zA-Z]+):([0-9_a-zA-Z]+)\\]");
 
@@ -149,6 +165,8 @@ public class ECHONETLiteGenericBindingProvider extends AbstractGenericBindingPro
 				}
 			}
 
+			// before the listeners are notified, which read the entry of the item
+			updatePollEntry(item.getName(), newConfig);
 			addBindingConfig(item, newConfig);
 		} else {
 			logger.warn("bindingConfig is NULL (item=" + item
@@ -162,27 +180,42 @@ public class ECHONETLiteGenericBindingProvider extends AbstractGenericBindingPro
 		config.itemType = item.getClass();
 
 		if (bindingConfig != null) {
-			Matcher inMatcher = IN_BINDING_PATTERN.matcher(bindingConfig);
-			if (!inMatcher.matches()) {
-				inMatcher = IN_BINDING_PATTERN_REFRESH.matcher(bindingConfig);
-			}
-
+			Matcher inMatcher = IN_BINDING_PATTERN_ADAPTIVE.matcher(bindingConfig);
 			if (inMatcher.matches()) {
 				ECHONETLiteBindingConfigElement newElement = new ECHONETLiteBindingConfigElement();
 				newElement.deviceId = inMatcher.group(1).toString();
 				newElement.epc = inMatcher.group(2).toString();
-				if (inMatcher.groupCount() == 3) newElement.refreshInterval = Integer.valueOf(inMatcher.group(3)).intValue(); 
+				newElement.refreshInterval = Long.parseLong(inMatcher.group(3));
+				newElement.maxRefreshInterval = Long.parseLong(inMatcher.group(4));
+				if (newElement.maxRefreshInterval < newElement.refreshInterval) {
+					throw new BindingConfigParseException("maximum refresh interval of item '"
+						+ item.getName() + "' must not be less than the minimum: " + bindingConfig);
+				}
 				logger.debug("item:{} newElement:{}", item, newElement);
 				config.put(IN_BINDING_KEY, newElement);
 			} else {
-				inMatcher = IN_BINDING_PATTERN_WO_COMMAND.matcher(bindingConfig);
-				if(inMatcher.matches()) {
+				inMatcher = IN_BINDING_PATTERN.matcher(bindingConfig);
+				if (!inMatcher.matches()) {
+					inMatcher = IN_BINDING_PATTERN_REFRESH.matcher(bindingConfig);
+				}
+
+				if (inMatcher.matches()) {
 					ECHONETLiteBindingConfigElement newElement = new ECHONETLiteBindingConfigElement();
 					newElement.deviceId = inMatcher.group(1).toString();
 					newElement.epc = inMatcher.group(2).toString();
-					newElement.refreshInterval = refreshInterval;
-					logger.debug("item:{} in_binding_update_newElement:{}", item, newElement);
-					config.put(IN_BINDING_FOR_UPDATE_KEY, newElement);
+					if (inMatcher.groupCount() == 3) newElement.refreshInterval = Integer.valueOf(inMatcher.group(3)).intValue(); 
+					logger.debug("item:{} newElement:{}", item, newElement);
+					config.put(IN_BINDING_KEY, newElement);
+				} else {
+					inMatcher = IN_BINDING_PATTERN_WO_COMMAND.matcher(bindingConfig);
+					if(inMatcher.matches()) {
+						ECHONETLiteBindingConfigElement newElement = new ECHONETLiteBindingConfigElement();
+						newElement.deviceId = inMatcher.group(1).toString();
+						newElement.epc = inMatcher.group(2).toString();
+						newElement.refreshInterval = refreshInterval;
+						logger.debug("item:{} in_binding_update_newElement:{}", item, newElement);
+						config.put(IN_BINDING_FOR_UPDATE_KEY, newElement);
+					}
 				}
 			}
 
@@ -220,15 +253,84 @@ public class ECHONETLiteGenericBindingProvider extends AbstractGenericBindingPro
 	/**
 	 * {@inheritDoc}
 	 */
-	public List<String> getInBindingItemNames() {
-		List<String> inBindings = new ArrayList<String>();
-		for (String itemName : bindingConfigs.keySet()) {
-			ECHONETLiteBindingConfig ECHONETLiteConfig = (ECHONETLiteBindingConfig) bindingConfigs.get(itemName);
-			if (ECHONETLiteConfig.containsKey(IN_BINDING_KEY)) {
-				inBindings.add(itemName);
+	@Override
+	public void removeConfigurations(String context) {
+		Set<Item> items = contextMap.get(context);
+		if (items != null) {
+			synchronized (pollEntries) {
+				for (Item item : items) {
+					if (pollEntries.remove(item.getName()) != null) {
+						pollPlan = null;
+					}
+				}
+			}
+		}
+		super.removeConfigurations(context);
+	}
+
+	/**
+	 * Adds, replaces or removes the poll plan entry of an item after its binding changed.
+	 */
+	private void updatePollEntry(String itemName, ECHONETLiteBindingConfig config) {
+		ECHONETLiteBindingConfigElement element = config.get(IN_BINDING_KEY);
+		ECHONETLitePollPlan.Entry entry = null;
+		if (element != null) {
+			try {
+				entry = new ECHONETLitePollPlan.Entry(itemName, element.deviceId, element.epc,
+					element.refreshInterval, element.maxRefreshInterval,
+					element.transformationService, element.transformationParam);
+			} catch (IllegalArgumentException e) {
+				logger.warn("Invalid EPC '{}' of item '{}', it must be one byte in hex",
+					element.epc, itemName);
+			}
+		}
+		synchronized (pollEntries) {
+			if (entry != null) {
+				pollEntries.put(itemName, entry);
+			} else if (pollEntries.remove(itemName) == null) {
+				return;
 			}
+			pollPlan = null;
 		}
-		return inBindings;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ECHONETLitePollPlan getPollPlan() {
+		ECHONETLitePollPlan plan = pollPlan;
+		if (plan == null) {
+			synchronized (pollEntries) {
+				plan = pollPlan;
+				if (plan == null) {
+					plan = new ECHONETLitePollPlan(pollEntries.values());
+					pollPlan = plan;
+				}
+			}
+		}
+		return plan;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ECHONETLitePollPlan.Entry getPollEntry(String itemName) {
+		synchronized (pollEntries) {
+			return pollEntries.get(itemName);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Items with an invalid EPC are left out. The list is the one of the poll plan, which must
+	 * not be modified.
+	 * </p>
+	 */
+	public List<String> getInBindingItemNames() {
+		return getPollPlan().getItemNames();
 	}
 
 	/**
@@ -268,6 +370,7 @@ public class ECHONETLiteGenericBindingProvider extends AbstractGenericBindingPro
 		public String edt;
 		public String value;
 		public long refreshInterval;
+		public long maxRefreshInterval;
 		public TransformationService transformationService;
 		public String transformationName;
 		public String transformationParam;
@@ -278,6 +381,7 @@ public class ECHONETLiteGenericBindingProvider extends AbstractGenericBindingPro
 				+ ", epc=" + epc
 				+ ", edt=" + edt
 				+ ", refreshInterval=" + refreshInterval
+				+ (maxRefreshInterval > 0 ? "-" + maxRefreshInterval : "")
 				+ "]";
 		}
 
@@ -450,6 +554,15 @@ public class ECHONETLiteGenericBindingProvider extends AbstractGenericBindingPro
 		return config != null && config.get(IN_BINDING_KEY) != null ? config.get(IN_BINDING_KEY).refreshInterval : 0;
 	}
 
+	public long getMaxRefreshInterval(String itemName) {
+		ECHONETLiteBindingConfig config = (ECHONETLiteBindingConfig) bindingConfigs.get(itemName);
+		ECHONETLiteBindingConfigElement element = config != null ? config.get(IN_BINDING_KEY) : null;
+		if (element == null) {
+			return 0;
+		}
+		return element.maxRefreshInterval > 0 ? element.maxRefreshInterval : element.refreshInterval;
+	}
+
 	private Command createCommandFromString(Item item, String commandAsString) throws BindingConfigParseException {
 
 		if (CHANGED_COMMAND_KEY.equals(commandAsString)) {
@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.echonetlite.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations which can be recorded from any number of threads without locking.
+ * <p>
+ * Durations are counted in microseconds, in four buckets per power of two, so a percentile
+ * is accurate to about 25% up to the largest bucket (2^27 us, about two minutes). Recording
+ * increments a {@link LongAdder} and does not allocate.
+ * </p>
+ *
+ * @author Kazuhiro Matsuda
+ * @since 1.8.0
+ */
+final class ECHONETLiteLatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 27;
+
+	private final LongAdder[] buckets = new LongAdder[(MAX_EXPONENT - SUB_BUCKET_BITS + 2)
+		* SUB_BUCKETS];
+
+	/** Sum of all recorded durations in microseconds. */
+	private final LongAdder sum = new LongAdder();
+
+	ECHONETLiteLatencyHistogram() {
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * @param nanos The duration in nanoseconds; negative durations are counted as 0.
+	 */
+	void record(long nanos) {
+		long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+		buckets[index(micros)].increment();
+		sum.add(micros);
+	}
+
+	long getCount() {
+		long count = 0;
+		for (LongAdder bucket : buckets) {
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * @return The mean duration in milliseconds, 0 if nothing was recorded.
+	 */
+	double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : sum.sum() / 1000.0 / count;
+	}
+
+	/**
+	 * @param percentile Between 0 and 100, e.g. 99
+	 * @return The duration in milliseconds the given share of the recorded durations did not
+	 *         exceed (as upper bound of its bucket), 0 if nothing was recorded.
+	 */
+	double getPercentile(double percentile) {
+		long[] counts = new long[buckets.length];
+		long count = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			counts[i] = buckets[i].sum();
+			count += counts[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return upperBound(i) / 1000.0;
+			}
+		}
+		return upperBound(counts.length - 1) / 1000.0;
+	}
+
+	void reset() {
+		for (LongAdder bucket : buckets) {
+			bucket.reset();
+		}
+		sum.reset();
+	}
+
+	private int index(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		if (exponent > MAX_EXPONENT) {
+			return buckets.length - 1;
+		}
+		int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return The largest duration in microseconds counted in the given bucket.
+	 */
+	private static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int subBucket = index % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return ((SUB_BUCKETS + subBucket) * width) + width - 1;
+	}
+}
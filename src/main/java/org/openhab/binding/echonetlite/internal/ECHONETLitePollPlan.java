@@ -0,0 +1,169 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.echonetlite.internal;
+
+import org.openhab.core.transform.TransformationException;
+import org.openhab.core.transform.TransformationService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The in-binding items of a binding provider, resolved once when the bindings change: for
+ * every item its device, EPC (also parsed), refresh intervals and transformation, grouped by
+ * device.
+ * <p>
+ * A plan is immutable, so the binding can walk it on every refresh without copying or
+ * looking up each item again. A provider builds a new plan when it is read after its items
+ * changed; the change of a single item is applied through its {@link Entry} instead.
+ * </p>
+ *
+ * @author Kazuhiro Matsuda
+ * @since 1.8.0
+ */
+public final class ECHONETLitePollPlan {
+
+	public static final ECHONETLitePollPlan EMPTY =
+		new ECHONETLitePollPlan(Collections.<Entry> emptyList());
+
+	/**
+	 * One in-binding item.
+	 */
+	public static final class Entry {
+		private final String itemName;
+		private final String deviceId;
+		private final String epc;
+		private final byte epcCode;
+		private final long refreshInterval;
+		private final long maxRefreshInterval;
+		private final TransformationService transformationService;
+		private final String transformationParam;
+
+		/**
+		 * @param epc The EPC as configured, in hex
+		 * @param refreshInterval Refresh interval in ms, 0 if the item is not polled
+		 * @param maxRefreshInterval Maximum interval in ms the item is polled at while its
+		 *        value does not change, 0 or <code>refreshInterval</code> if it is fixed
+		 * @param transformationService Transformation of the values, null if none
+		 * @throws IllegalArgumentException If the EPC is not a one byte hex number.
+		 */
+		public Entry(String itemName, String deviceId, String epc, long refreshInterval,
+			long maxRefreshInterval, TransformationService transformationService,
+			String transformationParam) {
+			this.itemName = itemName;
+			this.deviceId = deviceId;
+			this.epc = epc;
+			this.epcCode = ECHONETLiteFrameEncoder.parseEpc(epc);
+			this.refreshInterval = refreshInterval;
+			this.maxRefreshInterval = Math.max(refreshInterval, maxRefreshInterval);
+			this.transformationService = transformationService;
+			this.transformationParam = transformationParam;
+		}
+
+		public String getItemName() {
+			return itemName;
+		}
+
+		public String getDeviceId() {
+			return deviceId;
+		}
+
+		public String getEpc() {
+			return epc;
+		}
+
+		public byte getEpcCode() {
+			return epcCode;
+		}
+
+		public long getRefreshInterval() {
+			return refreshInterval;
+		}
+
+		public long getMaxRefreshInterval() {
+			return maxRefreshInterval;
+		}
+
+		public String doTransformation(String value) throws TransformationException {
+			if (transformationService == null) {
+				return value;
+			}
+			return transformationService.transform(transformationParam, value);
+		}
+
+		@Override
+		public String toString() {
+			return itemName + " [deviceId=" + deviceId + ", epc=" + epc + ", refreshInterval="
+				+ refreshInterval
+				+ (maxRefreshInterval > refreshInterval ? "-" + maxRefreshInterval : "") + "]";
+		}
+	}
+
+	private final List<Entry> entries;
+	private final List<String> itemNames;
+	private final Set<String> itemNameSet;
+	private final Map<String, List<Entry>> devices;
+
+	/**
+	 * @param entries The items, in the order they are polled in.
+	 */
+	public ECHONETLitePollPlan(Collection<Entry> entries) {
+		List<String> itemNames = new ArrayList<>(entries.size());
+		Map<String, List<Entry>> devices = new LinkedHashMap<>();
+		for (Entry entry : entries) {
+			itemNames.add(entry.itemName);
+			List<Entry> deviceEntries = devices.get(entry.deviceId);
+			if (deviceEntries == null) {
+				deviceEntries = new ArrayList<>();
+				devices.put(entry.deviceId, deviceEntries);
+			}
+			deviceEntries.add(entry);
+		}
+		for (Map.Entry<String, List<Entry>> device : devices.entrySet()) {
+			device.setValue(Collections.unmodifiableList(device.getValue()));
+		}
+		this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+		this.itemNames = Collections.unmodifiableList(itemNames);
+		this.itemNameSet = Collections.unmodifiableSet(new HashSet<>(itemNames));
+		this.devices = Collections.unmodifiableMap(devices);
+	}
+
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	public List<String> getItemNames() {
+		return itemNames;
+	}
+
+	/**
+	 * @return The names of the items, for lookups.
+	 */
+	public Set<String> getItemNameSet() {
+		return itemNameSet;
+	}
+
+	/**
+	 * @return The entries by device id, in the order the devices first appear.
+	 */
+	public Map<String, List<Entry>> getDevices() {
+		return devices;
+	}
+
+	@Override
+	public String toString() {
+		return entries.toString();
+	}
+}
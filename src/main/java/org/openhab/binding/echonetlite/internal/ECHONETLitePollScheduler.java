@@ -0,0 +1,465 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.echonetlite.internal;
+
+import org.openhab.binding.echonetlite.internal.ECHONETLiteStatisticsMXBean.PollStatistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fires the polls of the in-binding items when they are due.
+ * <p>
+ * Every item has its own deadline, kept in a queue ordered by next-due time. A dispatcher
+ * thread takes the items as they become due, groups those of the same device object into
+ * one poll and hands the polls to a pool of at most <code>concurrency</code> threads, so
+ * that different devices are polled at the same time. A poll which starts so late that
+ * whole refresh periods were missed is reported, and the missed periods are skipped
+ * instead of stretching the schedule.
+ * </p>
+ * <p>
+ * Items with a maximum refresh interval above their refresh interval are polled adaptively:
+ * every poll which leaves the value unchanged doubles the interval up to the maximum, and a
+ * change brings it back to the minimum. The polls saved that way are counted per item.
+ * </p>
+ *
+ * @author Kazuhiro Matsuda
+ * @since 1.8.0
+ */
+class ECHONETLitePollScheduler {
+
+	private static final Logger logger = LoggerFactory.getLogger(ECHONETLitePollScheduler.class);
+
+	/** Default number of polls running at the same time. */
+	static final int DEFAULT_CONCURRENCY = 4;
+
+	/** Number of cancelled entries beyond the scheduled ones after which the queue is purged. */
+	private static final int PURGE_THRESHOLD = 64;
+
+	/**
+	 * Polls the given items of one device object.
+	 */
+	interface Poller {
+		/**
+		 * @param deviceId The device instance as configured in openhab.cfg
+		 * @param itemNamesByEpc The items to update, by the EPC (upper case hex) they are bound to
+		 * @param epcs The EPCs of <code>itemNamesByEpc</code> in the same order, parsed when the
+		 *        items were scheduled
+		 * @return Whether the value of an item changed, by item name; items no value was
+		 *         received for are left out
+		 */
+		Map<String, Boolean> poll(String deviceId, Map<String, List<String>> itemNamesByEpc,
+			byte[] epcs);
+	}
+
+	private final Poller poller;
+
+	private final DelayQueue<PollEntry> queue = new DelayQueue<>();
+
+	private final ConcurrentMap<String, PollEntry> entries = new ConcurrentHashMap<>();
+
+	/**
+	 * The item last scheduled per device and refresh interval, which the next item of the
+	 * same device and interval is kept in phase with.
+	 */
+	private final ConcurrentMap<String, PollEntry> phases = new ConcurrentHashMap<>();
+
+	/** Entries cancelled while queued, which stay in the queue until they are due or purged. */
+	private final AtomicInteger cancelledQueued = new AtomicInteger();
+
+	private final LongAdder missedDeadlines = new LongAdder();
+
+	/** Time from sending a poll to handling its reply. */
+	private final ECHONETLiteLatencyHistogram pollCycleTime = new ECHONETLiteLatencyHistogram();
+
+	/** Time by which polls start after they are due. */
+	private final ECHONETLiteLatencyHistogram scheduleLag = new ECHONETLiteLatencyHistogram();
+
+	private final ThreadPoolExecutor executor;
+
+	private volatile Thread dispatcherThread = null;
+
+	private volatile boolean running = false;
+
+	ECHONETLitePollScheduler(Poller poller, int concurrency) {
+		this.poller = poller;
+		this.executor =
+			new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "ECHONETLite poller-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Changes the number of polls which may run at the same time.
+	 */
+	void setConcurrency(int concurrency) {
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("concurrency must be at least 1");
+		}
+		if (concurrency > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(concurrency);
+			executor.setCorePoolSize(concurrency);
+		} else {
+			executor.setCorePoolSize(concurrency);
+			executor.setMaximumPoolSize(concurrency);
+		}
+	}
+
+	/**
+	 * Starts the dispatcher thread, unless it is running already.
+	 */
+	synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		dispatcherThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				dispatchLoop();
+			}
+		}, "ECHONETLite poll scheduler");
+		dispatcherThread.setDaemon(true);
+		dispatcherThread.start();
+	}
+
+	/**
+	 * Stops the dispatcher thread; polls which are already queued are skipped. The schedule
+	 * itself is kept.
+	 */
+	synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		dispatcherThread.interrupt();
+		dispatcherThread = null;
+	}
+
+	/**
+	 * Schedules the polls of an item, or updates its schedule if the binding changed. Items
+	 * with a refresh interval of 0 are not polled.
+	 *
+	 * @param maxRefreshInterval The longest interval the item is polled at while its value does
+	 *        not change; the item is polled at a fixed interval if it is not above
+	 *        <code>refreshInterval</code>
+	 * @throws IllegalArgumentException If the EPC is not a one byte hex number.
+	 */
+	void schedule(String itemName, String deviceId, String epc, long refreshInterval,
+		long maxRefreshInterval) {
+		maxRefreshInterval = Math.max(refreshInterval, maxRefreshInterval);
+		PollEntry entry = entries.get(itemName);
+		if (entry != null && entry.matches(deviceId, epc, refreshInterval, maxRefreshInterval)) {
+			return;
+		}
+		cancel(itemName);
+		if (refreshInterval <= 0) {
+			return;
+		}
+		entry = new PollEntry(itemName, deviceId, epc.toUpperCase(),
+			ECHONETLiteFrameEncoder.parseEpc(epc), refreshInterval, maxRefreshInterval);
+		// keep in phase with the items of the same device, so that they are read together
+		PollEntry other = phases.put(entry.phaseKey(), entry);
+		if (other != null && !other.cancelled && other.currentInterval == refreshInterval) {
+			entry.dueAt = other.dueAt;
+		}
+		entries.put(itemName, entry);
+		queue.add(entry);
+	}
+
+	/**
+	 * Stops polling all items which are not in the given collection.
+	 */
+	void retainAll(Collection<String> itemNames) {
+		for (String itemName : entries.keySet()) {
+			if (!itemNames.contains(itemName)) {
+				cancel(itemName);
+			}
+		}
+	}
+
+	/**
+	 * Stops polling an item. The entry is only marked, it is dropped from the queue when it
+	 * becomes due, or with the others once there are more of them than items scheduled.
+	 */
+	void cancel(String itemName) {
+		PollEntry entry = entries.remove(itemName);
+		if (entry == null) {
+			return;
+		}
+		entry.cancelled = true;
+		phases.remove(entry.phaseKey(), entry);
+		if (cancelledQueued.incrementAndGet() > entries.size() + PURGE_THRESHOLD) {
+			cancelledQueued.set(0);
+			for (Iterator<PollEntry> queued = queue.iterator(); queued.hasNext();) {
+				if (queued.next().cancelled) {
+					queued.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The number of refresh periods which were skipped because a poll started too late.
+	 */
+	long getMissedDeadlines() {
+		return missedDeadlines.sum();
+	}
+
+	ECHONETLiteLatencyHistogram getPollCycleTime() {
+		return pollCycleTime;
+	}
+
+	ECHONETLiteLatencyHistogram getScheduleLag() {
+		return scheduleLag;
+	}
+
+	/**
+	 * Sets the missed deadlines and the timings back to 0; the statistics of the items are
+	 * kept, as they drive the adaptive intervals.
+	 */
+	void resetStatistics() {
+		missedDeadlines.reset();
+		pollCycleTime.reset();
+		scheduleLag.reset();
+	}
+
+	/**
+	 * @return A snapshot of the polling statistics of every scheduled item, by item name.
+	 */
+	Map<String, PollStatistics> getStatistics() {
+		Map<String, PollStatistics> statistics = new TreeMap<>();
+		for (PollEntry entry : entries.values()) {
+			statistics.put(entry.itemName, new PollStatistics(entry.polls, entry.changes,
+				entry.stretchedTime / entry.refreshInterval, entry.currentInterval));
+		}
+		return statistics;
+	}
+
+	private void dispatchLoop() {
+		List<PollEntry> due = new ArrayList<>();
+		while (running && dispatcherThread == Thread.currentThread()) {
+			try {
+				due.add(queue.take());
+				queue.drainTo(due);
+
+				// one poll per device object
+				Map<String, List<PollEntry>> dueByDevice = new LinkedHashMap<>();
+				for (PollEntry entry : due) {
+					if (entry.cancelled) {
+						cancelledQueued.decrementAndGet();
+						continue;
+					}
+					List<PollEntry> deviceEntries = dueByDevice.get(entry.deviceId);
+					if (deviceEntries == null) {
+						deviceEntries = new ArrayList<>();
+						dueByDevice.put(entry.deviceId, deviceEntries);
+					}
+					deviceEntries.add(entry);
+				}
+				for (Map.Entry<String, List<PollEntry>> deviceEntries : dueByDevice.entrySet()) {
+					executor.execute(new PollTask(deviceEntries.getKey(), deviceEntries.getValue()));
+				}
+			} catch (InterruptedException e) {
+				// stopped
+			} catch (RuntimeException e) {
+				logger.error("error when dispatching ECHONETLite polls", e);
+			} finally {
+				due.clear();
+			}
+		}
+	}
+
+	private void reschedule(PollEntry entry) {
+		if (entry.cancelled || entries.get(entry.itemName) != entry) {
+			return;
+		}
+		long now = System.nanoTime();
+		long interval = TimeUnit.MILLISECONDS.toNanos(entry.currentInterval);
+		long next = entry.dueAt + interval;
+		if (next - now <= 0) {
+			long skipped = (now - entry.dueAt) / interval;
+			missedDeadlines.add(skipped);
+			next = entry.dueAt + (skipped + 1) * interval;
+			logger.warn("Poll of item '{}' on device '{}' missed {} deadline(s) of {} ms, "
+				+ "consider a longer refresh interval or a higher concurrency",
+				entry.itemName, entry.deviceId, skipped, entry.currentInterval);
+		}
+		entry.dueAt = next;
+		queue.add(entry);
+	}
+
+	/**
+	 * Polls the due items of one device object and schedules their next poll.
+	 */
+	private class PollTask implements Runnable {
+		private final String deviceId;
+		private final List<PollEntry> entries;
+
+		PollTask(String deviceId, List<PollEntry> entries) {
+			this.deviceId = deviceId;
+			this.entries = entries;
+		}
+
+		@Override
+		public void run() {
+			Map<String, List<String>> itemNamesByEpc = new LinkedHashMap<>();
+			byte[] epcs = new byte[entries.size()];
+			for (PollEntry entry : entries) {
+				List<String> itemNames = itemNamesByEpc.get(entry.epc);
+				if (itemNames == null) {
+					itemNames = new ArrayList<>();
+					itemNamesByEpc.put(entry.epc, itemNames);
+					epcs[itemNamesByEpc.size() - 1] = entry.epcCode;
+				}
+				itemNames.add(entry.itemName);
+			}
+			if (itemNamesByEpc.size() < epcs.length) {
+				epcs = Arrays.copyOf(epcs, itemNamesByEpc.size());
+			}
+			Map<String, Boolean> changedItems = null;
+			try {
+				if (running) {
+					long start = System.nanoTime();
+					long dueAt = start;
+					for (PollEntry entry : entries) {
+						if (entry.dueAt - dueAt < 0) {
+							dueAt = entry.dueAt;
+						}
+					}
+					scheduleLag.record(start - dueAt);
+					changedItems = poller.poll(deviceId, itemNamesByEpc, epcs);
+					pollCycleTime.record(System.nanoTime() - start);
+				}
+			} catch (RuntimeException e) {
+				logger.error("error when polling ECHONETLite device '" + deviceId + "'", e);
+			} finally {
+				for (PollEntry entry : entries) {
+					if (changedItems != null) {
+						entry.pollCompleted(changedItems.get(entry.itemName));
+					}
+					reschedule(entry);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The schedule of one item.
+	 */
+	private static final class PollEntry implements Delayed {
+		final String itemName;
+		final String deviceId;
+		final String epc;
+		final byte epcCode;
+		final long refreshInterval;
+		final long maxRefreshInterval;
+
+		/** Interval in ms until the next poll; only changed while not queued. */
+		volatile long currentInterval;
+
+		/** Next due time, in {@link System#nanoTime()}; only changed while not queued. */
+		volatile long dueAt = System.nanoTime();
+
+		volatile boolean cancelled = false;
+
+		/** Statistics, only changed by the poll task of the entry. */
+		volatile long polls = 0;
+		volatile long changes = 0;
+		/** Sum of the time in ms by which the intervals were longer than the refresh interval. */
+		volatile long stretchedTime = 0;
+
+		PollEntry(String itemName, String deviceId, String epc, byte epcCode, long refreshInterval,
+			long maxRefreshInterval) {
+			this.itemName = itemName;
+			this.deviceId = deviceId;
+			this.epc = epc;
+			this.epcCode = epcCode;
+			this.refreshInterval = refreshInterval;
+			this.maxRefreshInterval = maxRefreshInterval;
+			this.currentInterval = refreshInterval;
+		}
+
+		/**
+		 * @return The key of the items this one is kept in phase with.
+		 */
+		String phaseKey() {
+			return deviceId + "/" + refreshInterval;
+		}
+
+		boolean matches(String deviceId, String epc, long refreshInterval, long maxRefreshInterval) {
+			return this.deviceId.equals(deviceId) && this.epc.equalsIgnoreCase(epc)
+				&& this.refreshInterval == refreshInterval
+				&& this.maxRefreshInterval == maxRefreshInterval;
+		}
+
+		/**
+		 * Counts a poll and adapts the interval to its result.
+		 *
+		 * @param changed Whether the value changed, or null if no value was received
+		 */
+		void pollCompleted(Boolean changed) {
+			polls++;
+			stretchedTime += currentInterval - refreshInterval;
+			if (changed == null) {
+				return;
+			}
+			long interval = currentInterval;
+			if (changed) {
+				changes++;
+				interval = refreshInterval;
+			} else {
+				interval = Math.min(interval * 2, maxRefreshInterval);
+			}
+			if (interval != currentInterval) {
+				logger.debug("Polling item '{}' every {} ms, as its value {}", itemName, interval,
+					changed ? "changed" : "did not change");
+				currentInterval = interval;
+			}
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(dueAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			long diff = dueAt - ((PollEntry) other).dueAt;
+			return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+		}
+	}
+}
@@ -0,0 +1,352 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.echonetlite.internal;
+
+import org.openhab.binding.echonetlite.data.DeviceInfo;
+import org.openhab.binding.echonetlite.data.TokenBucket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Collects the figures of the requests per device instance and per property, and publishes
+ * them together with those of the connector and the poll scheduler as
+ * {@link ECHONETLiteStatisticsMXBean}.
+ * <p>
+ * The counters are {@link LongAdder}s and the counters of a property are found by its EPC in
+ * an array, so recording takes no lock and does not allocate once a property has been seen.
+ * </p>
+ *
+ * @author Kazuhiro Matsuda
+ * @since 1.8.0
+ */
+class ECHONETLiteStatistics implements ECHONETLiteStatisticsMXBean {
+
+	private static final Logger logger = LoggerFactory.getLogger(ECHONETLiteStatistics.class);
+
+	static final String OBJECT_NAME = "org.openhab.binding.echonetlite:type=Statistics";
+
+	private static final int ESV_GET_SNA = 0x52;
+
+	private final ECHONETLiteUDPConnector connector;
+	private final ECHONETLitePollScheduler pollScheduler;
+	private final ECHONETLiteCommandDispatcher commandDispatcher;
+	private final Map<String, DeviceInfo> devices;
+
+	private final ConcurrentMap<String, DeviceStatistics> deviceStatistics =
+		new ConcurrentHashMap<>();
+
+	private ObjectName registeredName = null;
+
+	ECHONETLiteStatistics(ECHONETLiteUDPConnector connector,
+		ECHONETLitePollScheduler pollScheduler, ECHONETLiteCommandDispatcher commandDispatcher,
+		Map<String, DeviceInfo> devices) {
+		this.connector = connector;
+		this.pollScheduler = pollScheduler;
+		this.commandDispatcher = commandDispatcher;
+		this.devices = devices;
+	}
+
+	/**
+	 * @return The statistics of a device instance, created on first use.
+	 */
+	DeviceStatistics device(String deviceId) {
+		DeviceStatistics statistics = deviceStatistics.get(deviceId);
+		if (statistics == null) {
+			statistics = new DeviceStatistics();
+			DeviceStatistics existing = deviceStatistics.putIfAbsent(deviceId, statistics);
+			if (existing != null) {
+				statistics = existing;
+			}
+		}
+		return statistics;
+	}
+
+	/**
+	 * Registers the MBean with the platform MBean server, unless this is done already.
+	 */
+	synchronized void register() {
+		if (registeredName != null) {
+			return;
+		}
+		try {
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name)) {
+				// left over by an instance of the binding which was not deactivated
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+			registeredName = name;
+		} catch (JMException e) {
+			logger.warn("Could not register the ECHONETLite statistics MBean: {}", e.getMessage());
+		}
+	}
+
+	synchronized void unregister() {
+		if (registeredName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+		} catch (JMException e) {
+			logger.debug("Could not unregister the ECHONETLite statistics MBean: {}", e.getMessage());
+		}
+		registeredName = null;
+	}
+
+	@Override
+	public Map<String, RequestStatistics> getDevices() {
+		Map<String, RequestStatistics> result = new TreeMap<>();
+		for (Map.Entry<String, DeviceStatistics> device : deviceStatistics.entrySet()) {
+			result.put(device.getKey(), device.getValue().total.snapshot());
+		}
+		return result;
+	}
+
+	@Override
+	public Map<String, RequestStatistics> getProperties() {
+		Map<String, RequestStatistics> result = new TreeMap<>();
+		for (Map.Entry<String, DeviceStatistics> device : deviceStatistics.entrySet()) {
+			AtomicReferenceArray<RequestCounters> properties = device.getValue().properties;
+			for (int epc = 0; epc < properties.length(); epc++) {
+				RequestCounters counters = properties.get(epc);
+				if (counters != null) {
+					result.put(device.getKey() + "/" + ECHONETLiteFrame.epcToHex(epc),
+						counters.snapshot());
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public Map<String, PollStatistics> getItems() {
+		return pollScheduler.getStatistics();
+	}
+
+	@Override
+	public Map<String, String> getCircuitStates() {
+		Map<String, String> result = new TreeMap<>();
+		for (Map.Entry<String, DeviceInfo> device : devices.entrySet()) {
+			result.put(device.getKey(), device.getValue().getHealth().getState().name());
+		}
+		return result;
+	}
+
+	@Override
+	public long getBytesIn() {
+		return connector.getBytesIn();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return connector.getBytesOut();
+	}
+
+	@Override
+	public long getTimeouts() {
+		return connector.getTimeouts();
+	}
+
+	@Override
+	public long getUnsolicitedReplies() {
+		return connector.getUnsolicitedReplies();
+	}
+
+	@Override
+	public Map<String, Integer> getRateLimitQueues() {
+		Map<String, Integer> result = new TreeMap<>();
+		for (Map.Entry<String, DeviceInfo> device : devices.entrySet()) {
+			TokenBucket rateLimit = device.getValue().getTokenBucket();
+			if (rateLimit.getRate() > 0) {
+				result.put(device.getKey(), rateLimit.getWaiting());
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public LatencyStatistics getCommandQueueWait() {
+		return snapshot(connector.getCommandQueueWait());
+	}
+
+	@Override
+	public LatencyStatistics getPollQueueWait() {
+		return snapshot(connector.getPollQueueWait());
+	}
+
+	@Override
+	public LatencyStatistics getRateLimitWait() {
+		return snapshot(connector.getRateLimitWait());
+	}
+
+	@Override
+	public LatencyStatistics getPollCycleTime() {
+		return snapshot(pollScheduler.getPollCycleTime());
+	}
+
+	@Override
+	public LatencyStatistics getScheduleLag() {
+		return snapshot(pollScheduler.getScheduleLag());
+	}
+
+	@Override
+	public long getMissedDeadlines() {
+		return pollScheduler.getMissedDeadlines();
+	}
+
+	@Override
+	public long getCoalescedCommands() {
+		return commandDispatcher.getCoalescedCommands();
+	}
+
+	@Override
+	public long getRejectedCommands() {
+		return commandDispatcher.getRejectedCommands();
+	}
+
+	@Override
+	public int getQueuedCommands() {
+		return commandDispatcher.getQueuedCommands();
+	}
+
+	@Override
+	public LatencyStatistics getCommandLatency() {
+		return snapshot(commandDispatcher.getCommandLatency());
+	}
+
+	@Override
+	public void reset() {
+		deviceStatistics.clear();
+		connector.resetStatistics();
+		pollScheduler.resetStatistics();
+		commandDispatcher.resetStatistics();
+	}
+
+	static LatencyStatistics snapshot(ECHONETLiteLatencyHistogram histogram) {
+		return new LatencyStatistics(histogram.getCount(), histogram.getMean(),
+			histogram.getPercentile(50), histogram.getPercentile(95), histogram.getPercentile(99));
+	}
+
+	/**
+	 * The figures of one device instance, in total and per property.
+	 */
+	static final class DeviceStatistics {
+		final RequestCounters total = new RequestCounters();
+
+		private final AtomicReferenceArray<RequestCounters> properties =
+			new AtomicReferenceArray<>(256);
+
+		/**
+		 * @return The counters of a property, created on first use.
+		 */
+		RequestCounters property(int epc) {
+			RequestCounters counters = properties.get(epc & 0xFF);
+			if (counters == null) {
+				properties.compareAndSet(epc & 0xFF, null, new RequestCounters());
+				counters = properties.get(epc & 0xFF);
+			}
+			return counters;
+		}
+
+		/**
+		 * Counts a request before it is sent.
+		 *
+		 * @return The EPCs of the request, to count its outcome for them.
+		 */
+		int[] requestSent(ECHONETLiteFrame request) {
+			total.requests.increment();
+			total.bytesOut.add(request.length());
+			int[] epcs = new int[request.getOpc()];
+			int count = 0;
+			while (request.nextProperty() && count < epcs.length) {
+				RequestCounters counters = property(request.getEpc());
+				counters.requests.increment();
+				counters.bytesOut.add(2 + request.getPdc());
+				epcs[count++] = request.getEpc();
+			}
+			return count < epcs.length ? Arrays.copyOf(epcs, count) : epcs;
+		}
+
+		/**
+		 * Counts the size of a reply and the properties a Get_SNA could not read. The
+		 * cursor of the reply is moved back in front of the first property afterwards.
+		 */
+		void replyReceived(ECHONETLiteFrame reply) {
+			total.bytesIn.add(reply.length());
+			boolean sna = reply.getEsv() == ESV_GET_SNA;
+			if (sna) {
+				total.snas.increment();
+			}
+			while (reply.nextProperty()) {
+				RequestCounters counters = property(reply.getEpc());
+				counters.bytesIn.add(2 + reply.getPdc());
+				if (sna && reply.getPdc() == 0) {
+					counters.snas.increment();
+				}
+			}
+			reply.rewind();
+		}
+
+		/**
+		 * Records the round trip time of a request for the given properties.
+		 */
+		void responseReceived(int[] epcs, long roundTripTime) {
+			total.roundTripTime.record(roundTripTime);
+			for (int epc : epcs) {
+				property(epc).roundTripTime.record(roundTripTime);
+			}
+		}
+
+		void timedOut(int[] epcs) {
+			total.timeouts.increment();
+			for (int epc : epcs) {
+				property(epc).timeouts.increment();
+			}
+		}
+
+		void errorReceived(int[] epcs) {
+			total.errors.increment();
+			for (int epc : epcs) {
+				property(epc).errors.increment();
+			}
+		}
+	}
+
+	/**
+	 * The counters of a device instance or a property.
+	 */
+	static final class RequestCounters {
+		final LongAdder requests = new LongAdder();
+		final LongAdder timeouts = new LongAdder();
+		final LongAdder snas = new LongAdder();
+		final LongAdder errors = new LongAdder();
+		final LongAdder bytesOut = new LongAdder();
+		final LongAdder bytesIn = new LongAdder();
+		final ECHONETLiteLatencyHistogram roundTripTime = new ECHONETLiteLatencyHistogram();
+
+		RequestStatistics snapshot() {
+			return new RequestStatistics(requests.sum(), timeouts.sum(), snas.sum(), errors.sum(),
+				bytesOut.sum(), bytesIn.sum(), ECHONETLiteStatistics.snapshot(roundTripTime));
+		}
+	}
+}
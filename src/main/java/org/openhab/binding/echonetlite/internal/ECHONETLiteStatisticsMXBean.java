@@ -0,0 +1,268 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.echonetlite.internal;
+
+import java.beans.ConstructorProperties;
+import java.util.Map;
+
+/**
+ * Management interface of the statistics of the ECHONETLite binding, registered as
+ * <code>org.openhab.binding.echonetlite:type=Statistics</code>.
+ * <p>
+ * Durations are in milliseconds. All figures are counted since the binding started or the
+ * last {@link #reset()}.
+ * </p>
+ *
+ * @author Kazuhiro Matsuda
+ * @since 1.8.0
+ */
+public interface ECHONETLiteStatisticsMXBean {
+
+	/**
+	 * @return The requests of each device instance, by instance name.
+	 */
+	Map<String, RequestStatistics> getDevices();
+
+	/**
+	 * @return The requests of each property, by instance name and EPC, e.g. "temp_a/E0".
+	 */
+	Map<String, RequestStatistics> getProperties();
+
+	/**
+	 * @return The polls of each polled item, by item name. These figures drive the adaptive
+	 *         refresh intervals, so they are counted since the item was scheduled and not set
+	 *         back by {@link #reset()}.
+	 */
+	Map<String, PollStatistics> getItems();
+
+	/**
+	 * @return The circuit state of each device instance (CLOSED, OPEN or HALF_OPEN).
+	 */
+	Map<String, String> getCircuitStates();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	long getTimeouts();
+
+	long getUnsolicitedReplies();
+
+	/**
+	 * @return The number of frames waiting for the rate limit of each device instance whose
+	 *         rate is limited, by instance name.
+	 */
+	Map<String, Integer> getRateLimitQueues();
+
+	/**
+	 * @return The time commands of the user waited for a slot of the window of their device.
+	 */
+	LatencyStatistics getCommandQueueWait();
+
+	/**
+	 * @return The time polls waited for a slot of the window of their device.
+	 */
+	LatencyStatistics getPollQueueWait();
+
+	/**
+	 * @return The time frames waited for the rate limit of their device, for those which had
+	 *         to.
+	 */
+	LatencyStatistics getRateLimitWait();
+
+	/**
+	 * @return The time a poll of one device object took, from sending to handling the reply.
+	 */
+	LatencyStatistics getPollCycleTime();
+
+	/**
+	 * @return The time by which polls started after they were due.
+	 */
+	LatencyStatistics getScheduleLag();
+
+	long getMissedDeadlines();
+
+	/**
+	 * @return The commands which were not sent because a later one to the same property
+	 *         replaced them.
+	 */
+	long getCoalescedCommands();
+
+	/**
+	 * @return The commands which were dropped because too many were waiting to be sent.
+	 */
+	long getRejectedCommands();
+
+	/**
+	 * @return The number of commands waiting to be sent.
+	 */
+	int getQueuedCommands();
+
+	/**
+	 * @return The time from receiving a command to its reply, or until it was given up.
+	 */
+	LatencyStatistics getCommandLatency();
+
+	/**
+	 * Sets all figures back to 0.
+	 */
+	void reset();
+
+	/**
+	 * The requests sent to a device or for a property.
+	 */
+	class RequestStatistics {
+		private final long requests;
+		private final long timeouts;
+		private final long snas;
+		private final long errors;
+		private final long bytesOut;
+		private final long bytesIn;
+		private final LatencyStatistics roundTripTime;
+
+		@ConstructorProperties({ "requests", "timeouts", "snas", "errors", "bytesOut", "bytesIn",
+			"roundTripTime" })
+		public RequestStatistics(long requests, long timeouts, long snas, long errors,
+			long bytesOut, long bytesIn, LatencyStatistics roundTripTime) {
+			this.requests = requests;
+			this.timeouts = timeouts;
+			this.snas = snas;
+			this.errors = errors;
+			this.bytesOut = bytesOut;
+			this.bytesIn = bytesIn;
+			this.roundTripTime = roundTripTime;
+		}
+
+		public long getRequests() {
+			return requests;
+		}
+
+		public long getTimeouts() {
+			return timeouts;
+		}
+
+		/**
+		 * @return Number of replies with ESV 52 (Get_SNA), or properties missing from them.
+		 */
+		public long getSnas() {
+			return snas;
+		}
+
+		/**
+		 * @return Number of replies with another error ESV (5x).
+		 */
+		public long getErrors() {
+			return errors;
+		}
+
+		public long getBytesOut() {
+			return bytesOut;
+		}
+
+		public long getBytesIn() {
+			return bytesIn;
+		}
+
+		public LatencyStatistics getRoundTripTime() {
+			return roundTripTime;
+		}
+	}
+
+	/**
+	 * The polls of an item.
+	 */
+	class PollStatistics {
+		private final long polls;
+		private final long changes;
+		private final long savedPolls;
+		private final long currentInterval;
+
+		@ConstructorProperties({ "polls", "changes", "savedPolls", "currentInterval" })
+		public PollStatistics(long polls, long changes, long savedPolls, long currentInterval) {
+			this.polls = polls;
+			this.changes = changes;
+			this.savedPolls = savedPolls;
+			this.currentInterval = currentInterval;
+		}
+
+		/**
+		 * @return Number of polls the item was part of.
+		 */
+		public long getPolls() {
+			return polls;
+		}
+
+		/**
+		 * @return Number of polls which brought a new value.
+		 */
+		public long getChanges() {
+			return changes;
+		}
+
+		/**
+		 * @return Number of polls saved compared to polling at the refresh interval.
+		 */
+		public long getSavedPolls() {
+			return savedPolls;
+		}
+
+		/**
+		 * @return Interval in ms the item is polled at now.
+		 */
+		public long getCurrentInterval() {
+			return currentInterval;
+		}
+
+		@Override
+		public String toString() {
+			return "polls=" + polls + ", changes=" + changes + ", savedPolls=" + savedPolls
+				+ ", interval=" + currentInterval;
+		}
+	}
+
+	/**
+	 * Count and percentiles of durations in milliseconds.
+	 */
+	class LatencyStatistics {
+		private final long count;
+		private final double mean;
+		private final double p50;
+		private final double p95;
+		private final double p99;
+
+		@ConstructorProperties({ "count", "mean", "p50", "p95", "p99" })
+		public LatencyStatistics(long count, double mean, double p50, double p95, double p99) {
+			this.count = count;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p95 = p95;
+			this.p99 = p99;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMean() {
+			return mean;
+		}
+
+		public double getP50() {
+			return p50;
+		}
+
+		public double getP95() {
+			return p95;
+		}
+
+		public double getP99() {
+			return p99;
+		}
+	}
+}
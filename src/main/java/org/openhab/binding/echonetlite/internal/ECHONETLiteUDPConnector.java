@@ -9,86 +9,335 @@
 
 package org.openhab.binding.echonetlite.internal;
 
+import org.openhab.binding.echonetlite.data.InFlightWindow;
+import org.openhab.binding.echonetlite.data.TokenBucket;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 
 
 /**
  * Connector for UDP communication.
+ * <p>
+ * A single connector is shared by the whole binding. It owns one non-blocking
+ * {@link DatagramChannel} bound to the ECHONET Lite port and a receiver thread which
+ * routes every incoming frame to the request waiting for it. Replies are matched on
+ * the TID, on the SEOJ (which must be the DEOJ of the request) and on the source
+ * address, so any number of requests can be in flight over the same socket. How many of
+ * them may be outstanding at one device is limited by the {@link InFlightWindow} of
+ * the device, and how many are sent to it per second by its {@link TokenBucket}. Requests
+ * whose reply is overdue are failed together by a sweeper thread, and a reply arriving
+ * after its request was completed or given up is discarded. A SetI, which is only answered
+ * when it fails, is sent without taking a slot or being waited for, and kept registered
+ * for a while so that the error reply still finds its handler.
+ * </p>
+ * <p>
+ * The channel also joins the ECHONET Lite multicast group, so that the property value
+ * notifications (INF, INFC) the devices announce are handed to the
+ * {@link NotificationListener}.
+ * </p>
  *
  * @since 1.8.0
- * @author aklevy
+ * @author aklevy, Kazuhiro Matsuda
  */
 class ECHONETLiteUDPConnector {
 
-
-	/** debug and debug, always debug */
-	private static final Logger logger = LoggerFactory.getLogger(ECHONETLiteBinding.class);
-
+	private static final Logger logger = LoggerFactory.getLogger(ECHONETLiteUDPConnector.class);
 
 	/** Buffer for incoming UDP packages. */
 	private static final int MAX_PACKET_SIZE = 512;
 
-	/** Socket for receiving UDP packages. */
-	private DatagramSocket socket = null;
+	/** Number of request frames kept for reuse. */
+	private static final int FRAME_POOL_SIZE = 64;
+
+	/** Size of EHD, TID, SEOJ, DEOJ, ESV and OPC, i.e. the shortest valid frame. */
+	static final int HEADER_SIZE = ECHONETLiteFrame.HEADER_SIZE;
+
+	/** Time in milliseconds for waiting the reply from ECHONETLite devices. */
+	static final long RESPONSE_TIMEOUT = 2000;
+
+	/** Time in milliseconds between two sweeps for requests which timed out. */
+	private static final long SWEEP_INTERVAL = 100;
+
+	/** The group ECHONET Lite nodes send their announcements to. */
+	static final String MULTICAST_GROUP = "224.0.23.0";
+
+	/** ESV of property value notifications, without and with response. */
+	static final int ESV_INF = 0x73;
+	static final int ESV_INFC = 0x74;
+	static final int ESV_INFC_RES = 0x7A;
 
-	/** Time in second for waiting the reply from ECHONETLite devices. */
-	private int time = 1;
+	/** What an unacknowledged request completes with if no error reply was received. */
+	static final int NO_REPLY = -1;
 
-	/** The port this connector is listening to. */
+	/**
+	 * Handles the reply to a request.
+	 */
+	interface ResponseHandler {
+		/**
+		 * Called on the receiver thread with the reply, before the request completes.
+		 *
+		 * @param frame The reply, only valid during the call
+		 */
+		void responseReceived(ECHONETLiteFrame frame);
+	}
+
+	/**
+	 * Receives the replies of all nodes to a multicast request.
+	 */
+	interface ReplyListener {
+		/**
+		 * Called on the receiver thread for every frame carrying the TID of the request.
+		 *
+		 * @param source The node which sent the frame
+		 * @param frame The frame, only valid during the call
+		 */
+		void replyReceived(InetSocketAddress source, ECHONETLiteFrame frame);
+	}
+
+	/**
+	 * Receives the property value notifications (INF, INFC) sent by the devices.
+	 */
+	interface NotificationListener {
+		/**
+		 * Called on the receiver thread for every notification frame.
+		 *
+		 * @param source The node which sent the notification
+		 * @param frame The notification, only valid during the call
+		 */
+		void notificationReceived(InetSocketAddress source, ECHONETLiteFrame frame);
+	}
+
+	/** The port this connector is listening to and sending from. */
 	private int receivePort = 3610;
 
-	/** The port this connector is sending to. */
-	private int sendPort = 3610;
+	private DatagramChannel channel = null;
+
+	private Selector selector = null;
+
+	private Thread receiverThread = null;
 
 	/**
-	 * Create a new connector to an ECHONET Lite device via the given host and UDP ports.
+	 * Fails the requests whose reply is overdue, all at once, and sends the frames which
+	 * waited for the rate limit of their device.
+	 */
+	private volatile ScheduledExecutorService timeoutSweeper = null;
+
+	/** Number of requests given up because their reply was overdue. */
+	private final LongAdder timeouts = new LongAdder();
+
+	/** Number of replies discarded because no request was waiting for them. */
+	private final LongAdder unsolicitedReplies = new LongAdder();
+
+	/** Time requests waited for a slot of the window of their device, commands and others. */
+	private final ECHONETLiteLatencyHistogram commandQueueWait = new ECHONETLiteLatencyHistogram();
+	private final ECHONETLiteLatencyHistogram pollQueueWait = new ECHONETLiteLatencyHistogram();
+
+	/** Time frames waited for the rate limit of their device, for those which had to. */
+	private final ECHONETLiteLatencyHistogram rateLimitWait = new ECHONETLiteLatencyHistogram();
+
+	/** Size of all datagrams received and sent. */
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+
+	private volatile boolean running = false;
+
+	private volatile NotificationListener notificationListener = null;
+
+	/** Whether to join the ECHONET Lite multicast group to receive announcements. */
+	private boolean multicastEnabled = true;
+
+	/** Name or address of the interface to join the multicast group on, null for any. */
+	private String multicastInterface = null;
+
+	/** Requests which are waiting for their reply. */
+	private final ConcurrentMap<ResponseKey, PendingRequest> pendingResponses =
+		new ConcurrentHashMap<>();
+
+	/** Request frames which have been sent and can be encoded again. */
+	private final BlockingQueue<ByteBuffer> framePool =
+		new ArrayBlockingQueue<>(FRAME_POOL_SIZE);
+
+	/** Multicast requests which are collecting the replies of all nodes, by TID. */
+	private final ConcurrentMap<Integer, ReplyListener> multicastRequests =
+		new ConcurrentHashMap<>();
+
+	/**
+	 * Create a new connector listening on the given UDP port.
 	 *
 	 * @param udpReceivePort The UDP port to listen for packages.
-	 * @param udpSendPort The UDP port to send packages.
 	 */
-
-	ECHONETLiteUDPConnector(int udpReceivePort, int udpSendPort) {
+	ECHONETLiteUDPConnector(int udpReceivePort) {
 		if (udpReceivePort <= 0)
 			this.receivePort = 3610;
 		else
 			this.receivePort = udpReceivePort;
-
-		if (udpSendPort <= 0)
-			this.sendPort = 3610;
-		else
-			this.sendPort = udpSendPort;
 	}
 
 	/**
-	 * Initialize socket connection to the UDP receive port.
+	 * Opens the channel and starts the receiver thread, unless this has been done already.
 	 *
-	 * @throws SocketException
+	 * @throws IOException If the channel could not be opened or bound.
+	 */
+	public synchronized void connect() throws IOException {
+		if (running) {
+			return;
+		}
+		channel = DatagramChannel.open(StandardProtocolFamily.INET);
+		channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		channel.bind(new InetSocketAddress(receivePort));
+		channel.configureBlocking(false);
+		if (multicastEnabled) {
+			joinMulticastGroup();
+		}
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+
+		running = true;
+		receiverThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				receiveLoop();
+			}
+		}, "ECHONETLite UDP receiver");
+		receiverThread.setDaemon(true);
+		receiverThread.start();
+
+		timeoutSweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ECHONETLite timeout sweeper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		timeoutSweeper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				sweepTimeouts();
+			}
+		}, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+		logger.debug("listening for ECHONETLite frames on UDP port {}", receivePort);
+	}
+
+	/**
+	 * Stops the receiver thread, closes the channel and fails all outstanding requests.
 	 */
-	public void connect() throws SocketException {
-		if (socket == null) {
-			socket = new DatagramSocket(receivePort);
-			socket.setSoTimeout(time * 1000 * 2);
-			// logger.debug("created new socket to connect");
+	public synchronized void disconnect() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		timeoutSweeper.shutdownNow();
+		timeoutSweeper = null;
+		selector.wakeup();
+		try {
+			receiverThread.join(RESPONSE_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			selector.close();
+			channel.close();
+		} catch (IOException e) {
+			logger.debug("error while closing the ECHONETLite channel", e);
 		}
+		for (PendingRequest pending : pendingResponses.values()) {
+			pending.response.completeExceptionally(new ClosedChannelException());
+		}
+		pendingResponses.clear();
+		receiverThread = null;
+		selector = null;
+		channel = null;
+	}
+
+	public boolean isConnected() {
+		return running;
+	}
+
+	void setNotificationListener(NotificationListener listener) {
+		this.notificationListener = listener;
 	}
 
 	/**
-	 * Close the socket connection.
+	 * Configures the multicast membership, effective from the next {@link #connect()}.
+	 *
+	 * @param enabled Whether to join the ECHONET Lite multicast group.
+	 * @param interfaceName Name or address of the interface to join on, null for the first
+	 *        multicast capable one.
 	 */
-	public void disconnect() {
-		if (socket != null) {
-			socket.close();
-			socket = null;
+	synchronized void setMulticast(boolean enabled, String interfaceName) {
+		this.multicastEnabled = enabled;
+		this.multicastInterface = interfaceName;
+	}
+
+	private void joinMulticastGroup() {
+		try {
+			NetworkInterface networkInterface = findMulticastInterface();
+			if (networkInterface == null) {
+				logger.warn("No multicast capable network interface found, "
+					+ "ECHONET Lite announcements will not be received");
+				return;
+			}
+			channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+			channel.join(InetAddress.getByName(MULTICAST_GROUP), networkInterface);
+			logger.debug("joined ECHONETLite multicast group {} on {}", MULTICAST_GROUP,
+				networkInterface.getName());
+		} catch (IOException e) {
+			logger.warn("Could not join the ECHONETLite multicast group " + MULTICAST_GROUP, e);
+		}
+	}
+
+	private NetworkInterface findMulticastInterface() throws IOException {
+		if (multicastInterface != null) {
+			NetworkInterface networkInterface = NetworkInterface.getByName(multicastInterface);
+			if (networkInterface == null) {
+				networkInterface =
+					NetworkInterface.getByInetAddress(InetAddress.getByName(multicastInterface));
+			}
+			return networkInterface;
 		}
+		for (NetworkInterface networkInterface : Collections.list(NetworkInterface
+			.getNetworkInterfaces())) {
+			if (networkInterface.isUp() && networkInterface.supportsMulticast()
+				&& !networkInterface.isLoopback()) {
+				for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+					if (address instanceof Inet4Address) {
+						return networkInterface;
+					}
+				}
+			}
+		}
+		return null;
 	}
 
 	/**
@@ -107,90 +356,562 @@ class ECHONETLiteUDPConnector {
 	}
 
 	/**
-	 * This is a blocking call for receiving data from the specific UDP port.
-	 *
-	 * @return The received data.
-	 * @throws Exception If an exception occurred.
+	 * Takes a buffer to encode a request frame into, see {@link ECHONETLiteFrameEncoder}.
+	 * It is given back by {@link #sendDatagram} once the frame has been sent.
 	 */
-	String receiveDatagram(String host) throws Exception {
-		String dataReceived = "";
-		try {
-			if (socket == null) {
-				socket = new DatagramSocket(receivePort);
-				socket.setSoTimeout(time * 1000 * 2);
-			}
-			final InetAddress ipAddress = InetAddress.getByName(host);
-
-			// Creates a packet
-			DatagramPacket packet =
-				new DatagramPacket(new byte[MAX_PACKET_SIZE], MAX_PACKET_SIZE, ipAddress,
-					receivePort);
+	ByteBuffer allocateFrame() {
+		ByteBuffer frame = framePool.poll();
+		return frame != null ? frame : ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+	}
 
-			// Receives an ECHONETLite packet (blocking)
-			// nopChecks the ECHONETLite header "1081"
+	private void releaseFrame(ByteBuffer frame) {
+		frame.clear();
+		framePool.offer(frame);
+	}
 
-			socket.receive(packet);
+	/**
+	 * Sends a request frame to the given address and registers it for its reply.
+	 * <p>
+	 * The frame is sent at once if the window of the device has a free slot, otherwise it is
+	 * queued until an earlier request to the device is answered or given up. The slot is
+	 * given back when the returned request completes or is cancelled. Once it has a slot, the
+	 * frame waits for a token if the rate of the device is limited.
+	 * </p>
+	 *
+	 * @param frame The frame to send, including EHD and TID, between position and limit. It
+	 *        belongs to the connector from now on and must not be touched by the caller.
+	 * @param address The resolved address of the device.
+	 * @param window The in-flight window of the device.
+	 * @param rateLimit The rate limit of the device.
+	 * @param handler Handles the reply, may be null.
+	 * @return The request, to wait for its reply.
+	 * @throws IOException If the channel could not be opened or the host is unresolved.
+	 */
+	PendingRequest sendDatagram(ByteBuffer frame, InetSocketAddress address, InFlightWindow window,
+		TokenBucket rateLimit, ResponseHandler handler) throws IOException {
+		return sendDatagram(frame, address, window, rateLimit, false, handler);
+	}
 
-			if (packet.getLength() == 0) {
-				dataReceived = "nothing";
-			} else {
-				dataReceived = bytesToHex(packet.getData(), packet.getLength());
-			}
-			// logger.debug(dataReceived);
+	/**
+	 * Sends a request frame, see {@link #sendDatagram(ByteBuffer, InetSocketAddress,
+	 * InFlightWindow, TokenBucket, ResponseHandler)}.
+	 *
+	 * @param priority Whether the request is a command of the user, which is started before
+	 *        the polls waiting for the window of the device.
+	 */
+	PendingRequest sendDatagram(ByteBuffer frame, InetSocketAddress address, InFlightWindow window,
+		TokenBucket rateLimit, boolean priority, ResponseHandler handler) throws IOException {
+		final PendingRequest request =
+			register(frame, address, window, rateLimit, priority, handler);
+		if (window.acquire(request, priority)) {
+			request.run();
+		}
+		return request;
+	}
 
+	/**
+	 * Sends a request frame which is not answered when it succeeds, i.e. a SetI, at once on the
+	 * calling thread, unless it has to wait for the rate limit of the device.
+	 * <p>
+	 * The request does not take a slot of the window of the device and nobody waits for it.
+	 * It stays registered for {@link #RESPONSE_TIMEOUT} ms, so that an error reply (SetI_SNA)
+	 * is still handed to the handler; afterwards it completes with {@link #NO_REPLY}, which is
+	 * not counted as a timeout.
+	 * </p>
+	 *
+	 * @param frame The frame to send, see {@link #sendDatagram}.
+	 * @param address The resolved address of the device.
+	 * @param rateLimit The rate limit of the device.
+	 * @param handler Handles an error reply, may be null.
+	 * @return The request, completed when an error reply is received or the time is up.
+	 * @throws IOException If the channel could not be opened or the host is unresolved.
+	 */
+	PendingRequest sendUnacknowledged(ByteBuffer frame, InetSocketAddress address,
+		TokenBucket rateLimit, ResponseHandler handler) throws IOException {
+		final PendingRequest request = register(frame, address, null, rateLimit, true, handler);
+		request.run();
+		return request;
+	}
 
-			logger.debug("Message received: " + dataReceived);// +" from " +
-																												// Integer.toString(packet.getPort()));
-			return dataReceived;
-		} catch (SocketTimeoutException e) {
-			dataReceived = "nothing";
-			return dataReceived;
-		} catch (SocketException e) {
-			logger.debug("socketexception");
-			return dataReceived;
-			// throw new Exception(e);
+	private PendingRequest register(ByteBuffer frame, InetSocketAddress address,
+		InFlightWindow window, TokenBucket rateLimit, boolean priority, ResponseHandler handler)
+		throws IOException {
+		if (frame == null || frame.remaining() < HEADER_SIZE)
+			throw new IllegalArgumentException("data must contain at least an ECHONET Lite header");
+		try {
+			if (address.isUnresolved())
+				throw new IOException("Could not resolve host: " + address.getHostString());
+			connect();
 		} catch (IOException e) {
-			logger.debug("io exception");
-			throw new Exception(e);
+			releaseFrame(frame);
+			throw e;
 		}
 
+		final PendingRequest request =
+			new PendingRequest(frame, address, window, rateLimit, priority, handler);
+		if (pendingResponses.putIfAbsent(request.key, request) != null) {
+			releaseFrame(frame);
+			throw new IOException("a request with the same TID is already waiting: " + request.key);
+		}
+		return request;
 	}
 
 	/**
-	 * Send data to the specified address via the specified UDP port.
+	 * Sends a request frame to the ECHONET Lite multicast group and hands all frames carrying
+	 * its TID to the listener until the collection window is over.
 	 *
-	 * @param data The data to send.
-	 * @throws Exception If an exception occurred.
+	 * @param data The frame to send, including EHD and TID.
+	 * @param listener Receives the replies.
+	 * @param window Time in milliseconds to collect replies; the call blocks this long.
+	 * @throws IOException If the frame could not be sent.
 	 */
-	void sendDatagram(byte[] data, String host) throws Exception {
-		if (data == null || data.length == 0)
-			throw new IllegalArgumentException("data must not be null or empty");
+	void sendMulticast(byte[] data, ReplyListener listener, long window)
+		throws IOException, InterruptedException {
+		if (data == null || data.length < HEADER_SIZE)
+			throw new IllegalArgumentException("data must contain at least an ECHONET Lite header");
+		connect();
+
+		final Integer tid = (data[2] & 0xFF) << 8 | (data[3] & 0xFF);
+		if (multicastRequests.putIfAbsent(tid, listener) != null) {
+			throw new IOException("a multicast request with the same TID is already collecting replies");
+		}
 		try {
-			if (socket == null) {
-				socket = new DatagramSocket(receivePort);
-				socket.setSoTimeout(time * 1000 * 2);
+			bytesOut.add(channel.send(ByteBuffer.wrap(data), new InetSocketAddress(
+				InetAddress.getByName(MULTICAST_GROUP), receivePort)));
+			Thread.sleep(window);
+		} finally {
+			multicastRequests.remove(tid, listener);
+		}
+	}
+
+	/**
+	 * Fails all sent requests whose reply is overdue, and completes the unacknowledged ones
+	 * no error reply was received for; a reply arriving afterwards is discarded.
+	 */
+	private void sweepTimeouts() {
+		long now = System.nanoTime();
+		for (PendingRequest pending : pendingResponses.values()) {
+			if (!pending.isOverdue(now)) {
+				continue;
 			}
+			if (pending.window == null) {
+				// no news is good news
+				pending.response.complete(NO_REPLY);
+			} else if (pending.response.completeExceptionally(new TimeoutException("no reply from "
+				+ pending.address.getAddress().getHostAddress() + " within " + RESPONSE_TIMEOUT
+				+ " ms"))) {
+				timeouts.increment();
+			}
+		}
+	}
 
-			final InetAddress ipAddress = InetAddress.getByName(host);
-			final DatagramPacket packet =
-				new DatagramPacket(data, data.length, ipAddress, sendPort);
+	/**
+	 * @return The number of requests given up because their reply was overdue.
+	 */
+	long getTimeouts() {
+		return timeouts.sum();
+	}
 
-			// logger.debug("port: "+packet.getPort() + " data "+packet.getData()+ " size " +
-			// packet.getData().length+ " length "+packet.getLength()+" address " + packet.getAddress());
+	/**
+	 * @return The number of replies discarded because they were late, duplicated or not
+	 *         asked for.
+	 */
+	long getUnsolicitedReplies() {
+		return unsolicitedReplies.sum();
+	}
+
+	/**
+	 * @return The time commands of the user waited for a slot of the window of their device.
+	 */
+	ECHONETLiteLatencyHistogram getCommandQueueWait() {
+		return commandQueueWait;
+	}
+
+	/**
+	 * @return The time polls and other requests waited for a slot of the window of their
+	 *         device.
+	 */
+	ECHONETLiteLatencyHistogram getPollQueueWait() {
+		return pollQueueWait;
+	}
+
+	/**
+	 * @return The time frames waited for the rate limit of their device, for those which had
+	 *         to.
+	 */
+	ECHONETLiteLatencyHistogram getRateLimitWait() {
+		return rateLimitWait;
+	}
+
+	long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	long getBytesOut() {
+		return bytesOut.sum();
+	}
 
-			socket.send(packet);
-		} catch (SocketException e) {
-			throw new Exception(e);
-		} catch (UnknownHostException e) {
-			throw new Exception("Could not resolve host: " + host, e);
+	/**
+	 * Sets the counters back to 0.
+	 */
+	void resetStatistics() {
+		timeouts.reset();
+		unsolicitedReplies.reset();
+		commandQueueWait.reset();
+		pollQueueWait.reset();
+		rateLimitWait.reset();
+		bytesIn.reset();
+		bytesOut.reset();
+	}
+
+	private void receiveLoop() {
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+		final ECHONETLiteFrame frame = new ECHONETLiteFrame();
+		while (running) {
+			try {
+				selector.select();
+				selector.selectedKeys().clear();
+				SocketAddress source;
+				while (running && (source = channel.receive(buffer)) != null) {
+					buffer.flip();
+					bytesIn.add(buffer.remaining());
+					dispatch((InetSocketAddress) source, frame.wrap(buffer));
+					buffer.clear();
+				}
+			} catch (IOException e) {
+				if (running) {
+					logger.error("error when receiving message from ECHONETLite devices", e);
+				}
+			} catch (RuntimeException e) {
+				logger.error("error when dispatching message from ECHONETLite devices", e);
+				buffer.clear();
+			}
+		}
+	}
+
+	private void dispatch(InetSocketAddress source, ECHONETLiteFrame frame) {
+		if (!frame.isValid()) {
+			logger.debug("Ignoring a non ECHONETLite datagram from {}", source);
+			return;
+		}
+		int tid = frame.getTid();
+		int seoj = frame.getSeoj();
+		int esv = frame.getEsv();
+
+		if (esv == ESV_INF || esv == ESV_INFC) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("Notification received: {} from {}", frame, source);
+			}
+			if (esv == ESV_INFC) {
+				acknowledgeNotification(source, frame);
+				frame.rewind();
+			}
+			NotificationListener listener = notificationListener;
+			if (listener != null) {
+				listener.notificationReceived(source, frame);
+			}
+			return;
+		}
+
+		PendingRequest pending =
+			pendingResponses.remove(new ResponseKey(source.getAddress(), tid, seoj));
+		if (pending == null) {
+			// a request addressed to all instances of a class is answered by each of them
+			pending =
+				pendingResponses.remove(new ResponseKey(source.getAddress(), tid, seoj & 0xFFFF00));
+		}
+		if (pending == null) {
+			ReplyListener collector = multicastRequests.get(tid);
+			if (collector != null) {
+				collector.replyReceived(source, frame);
+				return;
+			}
+			// late, duplicated or not asked for
+			unsolicitedReplies.increment();
+			logger.debug("Discarding unsolicited frame (TID={}, SEOJ={}) from {}",
+				Integer.toHexString(tid), Integer.toHexString(seoj), source);
+			return;
+		}
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("Message received: {} from {}", frame, source);
+		}
+		pending.complete(frame);
+	}
+
+	/**
+	 * Answers an INFC with an INFC_Res listing the notified EPCs.
+	 */
+	private void acknowledgeNotification(InetSocketAddress source, ECHONETLiteFrame infc) {
+		ByteBuffer response = allocateFrame();
+		// <EHD><TID>, <SEOJ> is the notified object and <DEOJ> the notifying one
+		response.put((byte) 0x10).put((byte) 0x81).putShort((short) infc.getTid());
+		putEoj(response, infc.getDeoj());
+		putEoj(response, infc.getSeoj());
+		// <OPC> is filled in once the properties are counted
+		response.put((byte) ESV_INFC_RES).put((byte) 0);
+		int opc = 0;
+		while (infc.nextProperty()) {
+			response.put((byte) infc.getEpc()).put((byte) 0);
+			opc++;
+		}
+		response.put(11, (byte) opc);
+		response.flip();
+		try {
+			bytesOut.add(channel.send(response, source));
 		} catch (IOException e) {
-			throw new Exception(e);
+			logger.debug("could not acknowledge the notification of " + source, e);
+		} finally {
+			releaseFrame(response);
 		}
 	}
 
+	private static void putEoj(ByteBuffer frame, int eoj) {
+		frame.put((byte) (eoj >> 16)).put((byte) (eoj >> 8)).put((byte) eoj);
+	}
+
 	public String toString() {
-		return "ECHONETLiteUDPConnector: send UDP port is " + sendPort
-			+ ", receive UDP port is " + receivePort;
+		return "ECHONETLiteUDPConnector: UDP port is " + receivePort;
 	}
 
+	private static final int QUEUED = 0;
+	private static final int SENT = 1;
+	private static final int DONE = 2;
+
+	/**
+	 * A request frame on its way to a device, until its reply has been received or the
+	 * caller gave up waiting for it.
+	 */
+	final class PendingRequest implements Runnable {
+		private final ByteBuffer frame;
+		private final InetSocketAddress address;
+		/** The window the request took a slot of, null if it is unacknowledged. */
+		private final InFlightWindow window;
+		private final TokenBucket rateLimit;
+		private final boolean priority;
+		private final ResponseKey key;
+		private final ResponseHandler handler;
+		/** Completed with the ESV of the reply, or {@link #NO_REPLY}. */
+		private final CompletableFuture<Integer> response = new CompletableFuture<>();
+		private final AtomicInteger state = new AtomicInteger(QUEUED);
+		/** When the request was made, in {@link System#nanoTime()}. */
+		private final long createdAt = System.nanoTime();
+		/** When the frame was sent, in {@link System#nanoTime()}. */
+		private volatile long sentAt;
+		/** When the reply is overdue, in {@link System#nanoTime()}; set before it is sent. */
+		private volatile long deadline;
+		/** Time in ns from sending to receiving the reply, -1 until then. */
+		private volatile long roundTripTime = -1;
+
+		PendingRequest(ByteBuffer frame, InetSocketAddress address, InFlightWindow window,
+			TokenBucket rateLimit, boolean priority, ResponseHandler handler) {
+			this.frame = frame;
+			this.address = address;
+			this.window = window;
+			this.rateLimit = rateLimit;
+			this.priority = priority;
+			this.handler = handler;
+			this.key = ResponseKey.forRequest(frame, address.getAddress());
+			response.whenComplete(new BiConsumer<Integer, Throwable>() {
+				@Override
+				public void accept(Integer esv, Throwable failure) {
+					pendingResponses.remove(key, PendingRequest.this);
+					InFlightWindow window = PendingRequest.this.window;
+					boolean queued = state.getAndSet(DONE) == QUEUED;
+					if (window == null) {
+						return;
+					}
+					if (!queued) {
+						window.release();
+					} else if (window.remove(PendingRequest.this)) {
+						// given up while queued, never to be started
+						releaseFrame(frame);
+					}
+				}
+			});
+		}
+
+		/**
+		 * Sends the frame, once the window of the device granted a slot to it, or schedules
+		 * it to be sent when its token of the rate limit is due.
+		 */
+		@Override
+		public void run() {
+			final long now = System.nanoTime();
+			// armed before it counts as sent, so the sweeper never sees a deadline of 0
+			deadline = now + TimeUnit.MILLISECONDS.toNanos(RESPONSE_TIMEOUT);
+			if (!state.compareAndSet(QUEUED, SENT)) {
+				// given up just as it was handed a slot, or a SetI given up before it was sent
+				releaseFrame(frame);
+				if (window != null) {
+					window.release();
+				}
+				return;
+			}
+			if (window != null) {
+				(priority ? commandQueueWait : pollQueueWait).record(now - createdAt);
+			}
+			long delay = rateLimit != null ? rateLimit.reserve(now) : 0;
+			if (delay <= 0) {
+				send();
+				return;
+			}
+			// not overdue before it has been sent
+			deadline = now + delay + TimeUnit.MILLISECONDS.toNanos(RESPONSE_TIMEOUT);
+			ScheduledExecutorService scheduler = timeoutSweeper;
+			try {
+				if (scheduler == null) {
+					throw new RejectedExecutionException("the connector has been disconnected");
+				}
+				scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						rateLimit.sent();
+						rateLimitWait.record(System.nanoTime() - now);
+						if (response.isDone()) {
+							// given up while waiting
+							releaseFrame(frame);
+							return;
+						}
+						send();
+					}
+				}, delay, TimeUnit.NANOSECONDS);
+			} catch (RejectedExecutionException e) {
+				rateLimit.sent();
+				releaseFrame(frame);
+				response.completeExceptionally(new ClosedChannelException());
+			}
+		}
+
+		private void send() {
+			try {
+				if (logger.isDebugEnabled()) {
+					logger.debug("Sending {} to {}", new ECHONETLiteFrame().wrap(frame), address);
+				}
+				sentAt = System.nanoTime();
+				deadline = sentAt + TimeUnit.MILLISECONDS.toNanos(RESPONSE_TIMEOUT);
+				bytesOut.add(channel.send(frame, address));
+			} catch (IOException | RuntimeException e) {
+				response.completeExceptionally(e);
+			} finally {
+				releaseFrame(frame);
+			}
+		}
+
+		/**
+		 * Hands the reply to the handler and completes the request. Called on the receiver
+		 * thread.
+		 */
+		private void complete(ECHONETLiteFrame reply) {
+			if (response.isDone()) {
+				return;
+			}
+			roundTripTime = System.nanoTime() - sentAt;
+			try {
+				if (handler != null) {
+					handler.responseReceived(reply);
+				}
+				response.complete(reply.getEsv());
+			} catch (RuntimeException e) {
+				response.completeExceptionally(e);
+			}
+		}
+
+		/**
+		 * @return Whether the request has been sent and its reply is overdue.
+		 */
+		private boolean isOverdue(long now) {
+			return state.get() == SENT && now - deadline >= 0;
+		}
+
+		/**
+		 * Waits for the reply, which is given up {@link #RESPONSE_TIMEOUT} ms after the frame
+		 * was sent.
+		 *
+		 * @return The ESV of the reply, which has been handled already.
+		 * @throws TimeoutException If the device did not answer in time.
+		 */
+		int await() throws InterruptedException, ExecutionException, TimeoutException {
+			try {
+				return response.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof TimeoutException) {
+					throw (TimeoutException) e.getCause();
+				}
+				throw e;
+			}
+		}
+
+		/**
+		 * @return The time in ns from sending the frame to receiving the reply, or -1 if no
+		 *         reply was received.
+		 */
+		long getRoundTripTime() {
+			return roundTripTime;
+		}
+
+		/**
+		 * @return The future of the request, completed with the ESV of the reply, or failed
+		 *         with a {@link TimeoutException} if it is overdue.
+		 */
+		CompletableFuture<Integer> getResponse() {
+			return response;
+		}
+
+		/**
+		 * Gives the request up; a reply arriving afterwards is discarded.
+		 */
+		void cancel() {
+			response.cancel(false);
+		}
+
+		@Override
+		public String toString() {
+			return key.toString();
+		}
+	}
+
+	/**
+	 * Identifies the reply expected for a request: the device address, the TID and the
+	 * object which has to answer.
+	 */
+	private static final class ResponseKey {
+		private final InetAddress address;
+		private final int tid;
+		private final int eoj;
+
+		ResponseKey(InetAddress address, int tid, int eoj) {
+			this.address = address;
+			this.tid = tid;
+			this.eoj = eoj;
+		}
+
+		static ResponseKey forRequest(ByteBuffer frame, InetAddress address) {
+			int start = frame.position();
+			int tid = frame.getShort(start + 2) & 0xFFFF;
+			int deoj = (frame.get(start + 7) & 0xFF) << 16 | (frame.get(start + 8) & 0xFF) << 8
+				| (frame.get(start + 9) & 0xFF);
+			return new ResponseKey(address, tid, deoj);
+		}
+
+		@Override
+		public int hashCode() {
+			return (address.hashCode() * 31 + tid) * 31 + eoj;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ResponseKey)) {
+				return false;
+			}
+			ResponseKey other = (ResponseKey) obj;
+			return tid == other.tid && eoj == other.eoj && address.equals(other.address);
+		}
+
+		@Override
+		public String toString() {
+			return address.getHostAddress() + "/" + Integer.toHexString(tid) + "/"
+				+ Integer.toHexString(eoj);
+		}
+	}
 }
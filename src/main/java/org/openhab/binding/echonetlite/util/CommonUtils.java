@@ -1,10 +1,6 @@
 package org.openhab.binding.echonetlite.util;
 
-import com.google.common.primitives.Bytes;
-import com.google.common.primitives.Longs;
-
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <p>
@@ -15,7 +11,7 @@ import java.util.List;
  * @version 1.0
  */
 public class CommonUtils {
-	private static int tid = 1;
+	private static final AtomicInteger tid = new AtomicInteger(1);
 
 	public static byte[] hexStringToByteArray(String s) {
 		int len = s.length();
@@ -30,29 +26,24 @@ public class CommonUtils {
 
 
 	public static byte[] long2byte(long value) {
-		if (value == 0) {
-			return new byte[] {0};
-		}
-		byte[] array = Longs.toByteArray(value);
-		List<Byte> result = new ArrayList<>();
-		boolean skip = true;
-		for (byte b : array) {
-			if (skip) {
-				if (b == 0) {
-					continue;
-				} else {
-					skip = false;
-				}
-			}
-
-			result.add(b);
+		int length = Math.max(1, (Long.SIZE - Long.numberOfLeadingZeros(value) + 7) / 8);
+		byte[] result = new byte[length];
+		for (int i = length - 1; i >= 0; i--) {
+			result[i] = (byte) value;
+			value >>>= 8;
 		}
+		return result;
+	}
 
-		return Bytes.toArray(result);
+	/**
+	 * @return The next transaction id, in the lower 16 bits.
+	 */
+	public static int nextTid() {
+		return tid.getAndIncrement() & 0xFFFF;
 	}
 
 	public static byte[] getNextTid() {
-		int newtime = tid++;
+		int newtime = nextTid();
 		return new byte[] {(byte) (newtime >> 8), (byte) newtime};
 	}
 }